@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#replay recorded sessions: <sessions> <speedup> <trace>... must be passed as arguments
+#record a session with: java -Dhotel.record=session.trace.gz ... Hotel
+#Use your database name, port number and login
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar WorkloadReplayer $USER"_DB" $PGPORT $USER "$@"
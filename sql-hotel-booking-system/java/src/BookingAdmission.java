@@ -0,0 +1,360 @@
+/*
+ * Booking Admission Layer
+ * =============================
+ *
+ * Serializes room bookings per (hotelID, bookingDate) shard in-process and
+ * coalesces contending requests into small batched transactions.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Every (hotelID, bookingDate) pair hashes to one of a fixed number of
+ * stripes. Each stripe owns a queue, a worker thread and a connection, so
+ * requests racing for the same hotel and date never contend with each other
+ * for index pages or locks: they are queued and the worker drains whatever has
+ * piled up into one transaction per (hotelID, bookingDate), reading the
+ * hotel's rooms and that date's bookings and repairs once and inserting all
+ * accepted bookings as one batch.
+ *
+ * Once a worker sees that every room of a hotel is booked or under repair on
+ * a date, later requests for that pair are answered SOLD_OUT without touching
+ * the database for the next SOLD_OUT_TTL_MILLIS, after which the pair is
+ * checked again, so bookings deleted by other clients or hotels moved between
+ * shards are noticed.
+ * A transaction-scoped advisory lock on (hotelID, bookingDate) keeps other
+ * processes using this layer from double booking.
+ *
+ * The stripe transactions follow the menu's QueryGuard policy: their
+ * statements run under the bookRooms budget through statement_timeout, and
+ * serialization failures and deadlocks are retried with backoff.
+ */
+public class BookingAdmission {
+
+  public enum Outcome {
+    BOOKED,       // the booking was inserted
+    ROOM_TAKEN,   // the requested room is already booked on that date
+    SOLD_OUT,     // every room of the hotel is booked or under repair on that date
+    UNDER_REPAIR, // the requested room has a repair scheduled on that date
+    INVALID_ROOM, // the hotel has no such room
+    FAILED        // the transaction failed, see the error log
+  }
+
+  public static final int DEFAULT_STRIPES = 8;
+  public static final int DEFAULT_MAX_BATCH = 32;
+  public static final long SOLD_OUT_TTL_MILLIS = 10000;
+
+  private final Hotel esql;
+  private final int maxBatch;
+  private final Stripe[] stripes;
+
+  // (hotelID, bookingDate) pairs known to have no free room left, with the time the entry expires
+  private final Map < Key, Long > soldOut = new ConcurrentHashMap < Key, Long > ();
+
+  public BookingAdmission(Hotel esql, int stripes, int maxBatch) {
+    this.esql = esql;
+    this.maxBatch = Math.max(1, maxBatch);
+    this.stripes = new Stripe[Math.max(1, stripes)];
+    for (int i = 0; i < this.stripes.length; i++) {
+      this.stripes[i] = new Stripe(i);
+      this.stripes[i].start();
+    }
+  }
+
+  public BookingAdmission(Hotel esql) {
+    this(esql, DEFAULT_STRIPES, DEFAULT_MAX_BATCH);
+  }
+
+  /**
+   * Queues a booking request on the stripe owning its (hotelID, bookingDate).
+   *
+   * @return a future completed with the outcome once the batch commits
+   */
+  public Future < Outcome > submit(int customerID, int hotelID, int roomNumber, LocalDate date) {
+    Request request = new Request(customerID, new Key(hotelID, date), roomNumber);
+    if (isSoldOut(request.key)) {
+      request.result.complete(Outcome.SOLD_OUT);
+      return request.result;
+    }
+    this.stripes[Math.floorMod(request.key.hashCode(), this.stripes.length)].queue.add(request);
+    return request.result;
+  }
+
+  private boolean isSoldOut(Key key) {
+    Long expires = this.soldOut.get(key);
+    if (expires == null) {
+      return false;
+    }
+    if (expires < System.currentTimeMillis()) {
+      this.soldOut.remove(key, expires);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Stops the stripe workers and closes their connections. Requests still
+   * queued are completed as FAILED.
+   */
+  public void shutdown() {
+    for (Stripe stripe: this.stripes) {
+      stripe.interrupt();
+    }
+    for (Stripe stripe: this.stripes) {
+      try {
+        stripe.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  static final class Key {
+    final int hotelID;
+    final LocalDate date;
+
+    Key(int hotelID, LocalDate date) {
+      this.hotelID = hotelID;
+      this.date = date;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return this.hotelID == other.hotelID && this.date.equals(other.date);
+    }
+
+    public int hashCode() {
+      return 31 * this.hotelID + this.date.hashCode();
+    }
+  }
+
+  static final class Request {
+    final int customerID;
+    final Key key;
+    final int roomNumber;
+    final CompletableFuture < Outcome > result = new CompletableFuture < Outcome > ();
+
+    Request(int customerID, Key key, int roomNumber) {
+      this.customerID = customerID;
+      this.key = key;
+      this.roomNumber = roomNumber;
+    }
+  }
+
+  // One queue, worker thread and connection per stripe.
+  private final class Stripe extends Thread {
+    final BlockingQueue < Request > queue = new LinkedBlockingQueue < Request > ();
+    private Connection conn = null;
+    // bookRooms budget set as the connection's statement_timeout
+    private int budget = 0;
+
+    Stripe(int index) {
+      super("booking-stripe-" + index);
+      setDaemon(true);
+    }
+
+    public void run() {
+      List < Request > batch = new ArrayList < Request > ();
+      try {
+        while (true) {
+          batch.add(this.queue.take());
+          this.queue.drainTo(batch, maxBatch - 1);
+          process(batch);
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        // shutting down
+      } finally {
+        batch.addAll(this.queue);
+        for (Request request: batch) {
+          request.result.complete(Outcome.FAILED);
+        }
+        closeConnection();
+      }
+    }
+
+    // Runs one transaction per (hotelID, bookingDate) found in the drained batch.
+    private void process(List < Request > batch) {
+      Map < Key, List < Request >> groups = new LinkedHashMap < Key, List < Request >> ();
+      for (Request request: batch) {
+        List < Request > group = groups.get(request.key);
+        if (group == null) {
+          group = new ArrayList < Request > ();
+          groups.put(request.key, group);
+        }
+        group.add(request);
+      }
+      for (Map.Entry < Key, List < Request >> entry: groups.entrySet()) {
+        try {
+          admitWithRetry(entry.getKey(), entry.getValue());
+        } catch (SQLException | RuntimeException e) {
+          // a failed group must not take the stripe down: later requests would never be answered
+          System.err.println(e.getMessage());
+          closeConnection();
+          for (Request request: entry.getValue()) {
+            request.result.complete(Outcome.FAILED);
+          }
+        }
+      }
+    }
+
+    // Runs admit, retrying serialization failures and deadlocks like Hotel.executeTransaction.
+    private void admitWithRetry(Key key, List < Request > group) throws SQLException {
+      QueryGuard guard = esql.metrics();
+      for (int attempt = 1;; attempt++) {
+        try {
+          admit(key, group);
+          return;
+        } catch (SQLException e) {
+          if (!QueryGuard.isRetryable(e) || attempt > QueryGuard.MAX_RETRIES) {
+            throw guard.failed(e, new QueryGuard.Watch(this.budget));
+          }
+          try {
+            guard.backoff(attempt);
+          } catch (InterruptedException ie) {
+            // shutting down: fail the group, run() sees the interrupt on its next take
+            Thread.currentThread().interrupt();
+            throw e;
+          }
+        }
+      }
+    }
+
+    private void admit(Key key, List < Request > group) throws SQLException {
+      if (isSoldOut(key)) {
+        for (Request request: group) {
+          request.result.complete(Outcome.SOLD_OUT);
+        }
+        return;
+      }
+      Connection conn = connection();
+      Date date = Date.valueOf(key.date);
+      Map < Request, Outcome > decided = new LinkedHashMap < Request, Outcome > ();
+      try {
+        PreparedStatement lock = conn.prepareStatement("SELECT pg_advisory_xact_lock(?, ?)");
+        try {
+          lock.setInt(1, key.hotelID);
+          lock.setInt(2, (int) key.date.toEpochDay());
+          lock.executeQuery().close();
+        } finally {
+          lock.close();
+        }
+
+        Set < Integer > rooms = readRooms(conn, "SELECT roomNumber FROM Rooms WHERE hotelID = ?", key.hotelID, null);
+        Set < Integer > booked = readRooms(conn, "SELECT roomNumber FROM RoomBookings WHERE hotelID = ? AND bookingDate = ?", key.hotelID, date);
+        Set < Integer > repairs = readRooms(conn, "SELECT roomNumber FROM RoomRepairs WHERE hotelID = ? AND repairDate = ?", key.hotelID, date);
+        // rooms that can no longer be booked that day
+        Set < Integer > taken = new HashSet < Integer > (booked);
+        taken.addAll(repairs);
+
+        PreparedStatement insert = conn.prepareStatement("INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) VALUES (?, ?, ?, ?)");
+        try {
+          for (Request request: group) {
+            Outcome outcome;
+            if (!rooms.contains(request.roomNumber)) {
+              outcome = Outcome.INVALID_ROOM;
+            } else if (taken.size() >= rooms.size()) {
+              outcome = Outcome.SOLD_OUT;
+            } else if (booked.contains(request.roomNumber)) {
+              outcome = Outcome.ROOM_TAKEN;
+            } else if (repairs.contains(request.roomNumber)) {
+              outcome = Outcome.UNDER_REPAIR;
+            } else {
+              outcome = Outcome.BOOKED;
+              booked.add(request.roomNumber);
+              taken.add(request.roomNumber);
+              insert.setInt(1, request.customerID);
+              insert.setInt(2, key.hotelID);
+              insert.setInt(3, request.roomNumber);
+              insert.setDate(4, date);
+              insert.addBatch();
+            }
+            decided.put(request, outcome);
+          }
+          insert.executeBatch();
+        } finally {
+          insert.close();
+        }
+        conn.commit();
+        if (!rooms.isEmpty() && taken.size() >= rooms.size()) {
+          soldOut.put(key, System.currentTimeMillis() + SOLD_OUT_TTL_MILLIS);
+        }
+      } catch (SQLException | RuntimeException e) {
+        conn.rollback();
+        throw e;
+      }
+      for (Map.Entry < Request, Outcome > entry: decided.entrySet()) {
+        entry.getKey().result.complete(entry.getValue());
+      }
+    }
+
+    private Set < Integer > readRooms(Connection conn, String query, int hotelID, Date date) throws SQLException {
+      Set < Integer > result = new HashSet < Integer > ();
+      PreparedStatement stmt = conn.prepareStatement(query);
+      try {
+        stmt.setInt(1, hotelID);
+        if (date != null) {
+          stmt.setDate(2, date);
+        }
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+          result.add(rs.getInt(1));
+        }
+        rs.close();
+      } finally {
+        stmt.close();
+      }
+      return result;
+    }
+
+    private Connection connection() throws SQLException {
+      if (this.conn == null) {
+        Connection conn = esql.openConnection();
+        try {
+          // set while still in autocommit, so no rollback can undo it
+          this.budget = esql.metrics().budgetFor("bookRooms");
+          QueryGuard.limit(conn, this.budget);
+          conn.setAutoCommit(false);
+        } catch (SQLException e) {
+          conn.close();
+          throw e;
+        }
+        this.conn = conn;
+      }
+      return this.conn;
+    }
+
+    private void closeConnection() {
+      try {
+        if (this.conn != null) {
+          this.conn.close();
+        }
+      } catch (SQLException e) {
+        // ignored.
+      }
+      this.conn = null;
+    }
+  }
+}
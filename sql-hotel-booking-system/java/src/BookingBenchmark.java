@@ -0,0 +1,226 @@
+/*
+ * Booking Benchmark
+ * =============================
+ *
+ * Skewed-load benchmark comparing the naive booking path (check then insert
+ * per request, autocommit) against the BookingAdmission layer.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates one fixed list of booking requests whose hotels and dates follow
+ * a Zipfian distribution, so a few (hotelID, bookingDate) pairs receive most
+ * of the traffic, then replays it with a number of closed-loop client threads
+ * against each path. Bookings made by a run are deleted afterwards so both
+ * paths start from the same data.
+ *
+ * Usage: java BookingBenchmark <dbname> <port> <user> [threads] [requests]
+ */
+public class BookingBenchmark {
+
+  // Zipf exponent for hotels and dates
+  static final double SKEW = 1.1;
+  // number of distinct dates the load is spread over
+  static final int DATES = 30;
+  // bookings are made far in the future so they do not collide with the loaded data
+  static final LocalDate FIRST_DATE = LocalDate.of(2030, 1, 1);
+
+  static final class Request {
+    final int hotelID;
+    final int roomNumber;
+    final LocalDate date;
+
+    Request(int hotelID, int roomNumber, LocalDate date) {
+      this.hotelID = hotelID;
+      this.roomNumber = roomNumber;
+      this.date = date;
+    }
+  }
+
+  // Samples ranks 0..n-1 with probability proportional to 1 / (rank + 1)^s.
+  static final class Zipf {
+    private final double[] cdf;
+
+    Zipf(int n, double s) {
+      this.cdf = new double[n];
+      double sum = 0;
+      for (int i = 0; i < n; i++) {
+        sum += 1.0 / Math.pow(i + 1, s);
+        this.cdf[i] = sum;
+      }
+      for (int i = 0; i < n; i++) {
+        this.cdf[i] /= sum;
+      }
+    }
+
+    int next(Random random) {
+      int i = Arrays.binarySearch(this.cdf, random.nextDouble());
+      return Math.min(i < 0 ? -i - 1 : i, this.cdf.length - 1);
+    }
+  }
+
+  // One client step; returns true when the request booked a room.
+  interface Path {
+    boolean book(int client, Request request) throws Exception;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("Usage: java [-classpath <classpath>] " + BookingBenchmark.class.getName() + " <dbname> <port> <user> [threads] [requests]");
+      return;
+    }
+    int threads = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+    int requests = args.length > 4 ? Integer.parseInt(args[4]) : 20000;
+
+    Class.forName("org.postgresql.Driver");
+    final Hotel esql = new Hotel(args[0], args[1], args[2], "");
+    try {
+      final int customerID = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT MIN(userID) FROM Users").get(0).get(0));
+      final List < Request > workload = generate(esql, requests);
+
+      // naive path: one connection per client, check then insert in autocommit mode
+      final Connection[] conns = new Connection[threads];
+      for (int i = 0; i < threads; i++) {
+        conns[i] = esql.openConnection();
+      }
+      try {
+        run("naive", esql, workload, threads, new Path() {
+          public boolean book(int client, Request request) throws SQLException {
+            Connection conn = conns[client];
+            PreparedStatement check = conn.prepareStatement("SELECT 1 FROM RoomBookings WHERE hotelID = ? AND roomNumber = ? AND bookingDate = ?");
+            try {
+              check.setInt(1, request.hotelID);
+              check.setInt(2, request.roomNumber);
+              check.setDate(3, Date.valueOf(request.date));
+              ResultSet rs = check.executeQuery();
+              boolean taken = rs.next();
+              rs.close();
+              if (taken) {
+                return false;
+              }
+            } finally {
+              check.close();
+            }
+            PreparedStatement insert = conn.prepareStatement("INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) VALUES (?, ?, ?, ?)");
+            try {
+              insert.setInt(1, customerID);
+              insert.setInt(2, request.hotelID);
+              insert.setInt(3, request.roomNumber);
+              insert.setDate(4, Date.valueOf(request.date));
+              insert.executeUpdate();
+              return true;
+            } finally {
+              insert.close();
+            }
+          }
+        });
+      } finally {
+        for (Connection conn: conns) {
+          conn.close();
+        }
+      }
+
+      // admission path: clients submit to the striped queues and wait for the batch to commit
+      final BookingAdmission admission = new BookingAdmission(esql);
+      try {
+        run("admission", esql, workload, threads, new Path() {
+          public boolean book(int client, Request request) throws Exception {
+            return admission.submit(customerID, request.hotelID, request.roomNumber, request.date).get() == BookingAdmission.Outcome.BOOKED;
+          }
+        });
+      } finally {
+        admission.shutdown();
+      }
+    } finally {
+      esql.cleanup();
+    }
+  }
+
+  static List < Request > generate(Hotel esql, int requests) throws SQLException {
+    Map < Integer, List < Integer >> rooms = new LinkedHashMap < Integer, List < Integer >> ();
+    for (List < String > row: esql.executeQueryAndReturnResult("SELECT hotelID, roomNumber FROM Rooms ORDER BY hotelID, roomNumber")) {
+      int hotelID = Integer.parseInt(row.get(0));
+      if (!rooms.containsKey(hotelID)) {
+        rooms.put(hotelID, new ArrayList < Integer > ());
+      }
+      rooms.get(hotelID).add(Integer.parseInt(row.get(1)));
+    }
+    List < Integer > hotels = new ArrayList < Integer > (rooms.keySet());
+    Zipf hotelRank = new Zipf(hotels.size(), SKEW);
+    Zipf dateRank = new Zipf(DATES, SKEW);
+    Random random = new Random(42);
+
+    List < Request > workload = new ArrayList < Request > (requests);
+    for (int i = 0; i < requests; i++) {
+      int hotelID = hotels.get(hotelRank.next(random));
+      List < Integer > hotelRooms = rooms.get(hotelID);
+      workload.add(new Request(hotelID, hotelRooms.get(random.nextInt(hotelRooms.size())), FIRST_DATE.plusDays(dateRank.next(random))));
+    }
+    return workload;
+  }
+
+  static void run(String name, Hotel esql, final List < Request > workload, int threads, final Path path) throws Exception {
+    int lastBooking = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COALESCE(MAX(bookingID), 0) FROM RoomBookings").get(0).get(0));
+    final long[] latencies = new long[workload.size()];
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger booked = new AtomicInteger();
+    final AtomicInteger errors = new AtomicInteger();
+
+    Thread[] clients = new Thread[threads];
+    long begin = System.nanoTime();
+    for (int c = 0; c < threads; c++) {
+      final int client = c;
+      clients[c] = new Thread(new Runnable() {
+        public void run() {
+          int i;
+          while ((i = next.getAndIncrement()) < workload.size()) {
+            long start = System.nanoTime();
+            try {
+              if (path.book(client, workload.get(i))) {
+                booked.incrementAndGet();
+              }
+            } catch (Exception e) {
+              errors.incrementAndGet();
+            }
+            latencies[i] = System.nanoTime() - start;
+          }
+        }
+      });
+      clients[c].start();
+    }
+    for (Thread client: clients) {
+      client.join();
+    }
+    long elapsed = System.nanoTime() - begin;
+
+    // the naive path can book the same room twice when two clients pass the check at once
+    String duplicates = esql.executeQueryAndReturnResult(String.format("SELECT COUNT(*) - COUNT(DISTINCT (hotelID, roomNumber, bookingDate)) FROM RoomBookings WHERE bookingID > %d", lastBooking)).get(0).get(0);
+    esql.executeUpdate(String.format("DELETE FROM RoomBookings WHERE bookingID > %d", lastBooking));
+
+    Arrays.sort(latencies);
+    System.out.printf("%-10s requests=%d threads=%d throughput=%.0f req/s p50=%.2f ms p95=%.2f ms p99=%.2f ms max=%.2f ms booked=%d doubleBooked=%s errors=%d\n",
+      name, workload.size(), threads, workload.size() / (elapsed / 1e9),
+      percentile(latencies, 0.50), percentile(latencies, 0.95), percentile(latencies, 0.99), latencies[latencies.length - 1] / 1e6,
+      booked.get(), duplicates, errors.get());
+  }
+
+  static double percentile(long[] sorted, double p) {
+    return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))] / 1e6;
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * History Exporter
+ * =============================
+ *
+ * Streams booking and repair history to gzip-compressed CSV files, one file
+ * per hotel, in the same column layout as the files in data/.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Each hotel is one partition. Partitions are exported in parallel by a fixed
+ * number of workers, each borrowing one of a small pool of connections, and
+ * written through a FileChannel wrapped in a GZIP stream.
+ *
+ * When the JDBC driver provides the COPY API the rows are produced by
+ * COPY (SELECT ...) TO STDOUT and copied straight into the file. Otherwise
+ * (the bundled pg73 driver, which has neither COPY nor fetch-size support)
+ * the query is read through an explicitly declared server-side cursor,
+ * FETCH_SIZE rows per FETCH. Either way only one buffer of rows per worker is
+ * held in memory, whatever the size of the history. A file whose partition
+ * fails is deleted rather than left half written.
+ */
+public class HistoryExporter {
+
+  public static final int DEFAULT_WORKERS = 4;
+  // rows per FETCH when reading through a cursor
+  static final int FETCH_SIZE = 1000;
+  static final int BUFFER_SIZE = 64 * 1024;
+  // how long a failed export waits for the other partitions to stop before closing their connections
+  static final long SHUTDOWN_SECONDS = 30;
+
+  // same column layout as data/bookings.csv and data/roomRepairs.csv
+  // (quoted aliases keep the header's case, Postgres folds unquoted names to lower case)
+  static final String BOOKINGS_QUERY = "SELECT bookingID AS \"bookingID\", customerID AS \"customerID\", hotelID AS \"hotelID\", roomNumber AS \"roomNumber\", bookingDate AS \"bookingDate\" FROM RoomBookings WHERE hotelID = %d AND bookingDate BETWEEN '%s' AND '%s' ORDER BY bookingDate, bookingID";
+  static final String REPAIRS_QUERY = "SELECT repairID AS \"repairID\", companyID AS \"companyID\", hotelID AS \"hotelID\", roomNumber AS \"roomNumber\", repairDate AS \"repairDate\" FROM RoomRepairs WHERE hotelID = %d AND repairDate BETWEEN '%s' AND '%s' ORDER BY repairDate, repairID";
+
+  // org.postgresql.copy.CopyManager, looked up reflectively since the bundled driver predates it
+  private static final Class < ? > BASE_CONNECTION;
+  private static final Constructor < ? > COPY_MANAGER;
+  private static final Method COPY_OUT;
+  static {
+    Class < ? > base = null;
+    Constructor < ? > ctor = null;
+    Method copyOut = null;
+    try {
+      base = Class.forName("org.postgresql.core.BaseConnection");
+      Class < ? > copyManager = Class.forName("org.postgresql.copy.CopyManager");
+      ctor = copyManager.getConstructor(base);
+      copyOut = copyManager.getMethod("copyOut", String.class, OutputStream.class);
+    } catch (Exception e) {
+      // driver without COPY support, the cursor path is used.
+      ctor = null;
+      copyOut = null;
+    }
+    BASE_CONNECTION = base;
+    COPY_MANAGER = ctor;
+    COPY_OUT = copyOut;
+  }
+
+  private final Hotel esql;
+  private final int workers;
+
+  public HistoryExporter(Hotel esql, int workers) {
+    this.esql = esql;
+    this.workers = Math.max(1, workers);
+  }
+
+  public HistoryExporter(Hotel esql) {
+    this(esql, DEFAULT_WORKERS);
+  }
+
+  /**
+   * Writes bookings_hotel<ID>.csv.gz and roomRepairs_hotel<ID>.csv.gz for
+   * every given hotel into the directory.
+   *
+   * @return the total number of rows written
+   * @throws java.lang.Exception when a partition fails
+   */
+  public long export(List < Integer > hotelIDs, LocalDate from, LocalDate to, Path dir) throws Exception {
+    Files.createDirectories(dir);
+    final BlockingQueue < Connection > pool = new LinkedBlockingQueue < Connection > ();
+    // every connection opened, whether or not a partition still holds it
+    List < Connection > opened = new ArrayList < Connection > ();
+    ExecutorService executor = Executors.newFixedThreadPool(this.workers);
+    try {
+      for (int i = 0; i < Math.min(this.workers, hotelIDs.size()); i++) {
+        Connection conn = this.esql.openConnection();
+        opened.add(conn);
+        pool.add(conn);
+      }
+      List < Future < Long >> parts = new ArrayList < Future < Long >> ();
+      for (int hotelID: hotelIDs) {
+        parts.add(executor.submit(new Partition(pool, String.format(BOOKINGS_QUERY, hotelID, from, to), dir.resolve("bookings_hotel" + hotelID + ".csv.gz"))));
+        parts.add(executor.submit(new Partition(pool, String.format(REPAIRS_QUERY, hotelID, from, to), dir.resolve("roomRepairs_hotel" + hotelID + ".csv.gz"))));
+      }
+      long rows = 0;
+      for (Future < Long > part: parts) {
+        rows += part.get();
+      }
+      return rows;
+    } finally {
+      // on failure the other partitions are interrupted; they must stop using their connections before these are closed
+      executor.shutdownNow();
+      try {
+        executor.awaitTermination(SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      for (Connection conn: opened) {
+        try {
+          conn.close();
+        } catch (SQLException e) {
+          // ignored.
+        }
+      }
+    }
+  }
+
+  /**
+   * Streams one query into one compressed CSV file with a header row.
+   *
+   * @return the number of rows written
+   */
+  static long exportQuery(Connection conn, String query, Path file) throws Exception {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), BUFFER_SIZE);
+    boolean done = false;
+    try {
+      long rows;
+      if (COPY_MANAGER != null && conn.isWrapperFor(BASE_CONNECTION)) {
+        Object copyManager = COPY_MANAGER.newInstance(conn.unwrap(BASE_CONNECTION));
+        rows = (Long) COPY_OUT.invoke(copyManager, "COPY (" + query + ") TO STDOUT WITH CSV HEADER", out);
+      } else {
+        rows = streamCursor(conn, query, out);
+      }
+      done = true;
+      return rows;
+    } finally {
+      try {
+        out.close();
+      } finally {
+        if (!done) {
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+  }
+
+  // Reads the query through a cursor declared in its own transaction, FETCH_SIZE rows per FETCH.
+  static long streamCursor(Connection conn, String query, OutputStream out) throws SQLException, IOException {
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);
+    Statement stmt = conn.createStatement();
+    try {
+      stmt.executeUpdate("DECLARE export NO SCROLL CURSOR FOR " + query);
+      StringBuilder line = new StringBuilder();
+      long rows = 0;
+      boolean header = true;
+      while (true) {
+        ResultSet rs = stmt.executeQuery("FETCH FORWARD " + FETCH_SIZE + " FROM export");
+        int fetched = 0;
+        try {
+          ResultSetMetaData rsmd = rs.getMetaData();
+          int numCol = rsmd.getColumnCount();
+          if (header) {
+            line.setLength(0);
+            for (int i = 1; i <= numCol; i++) {
+              line.append(i > 1 ? "," : "").append(rsmd.getColumnName(i));
+            }
+            out.write(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+            header = false;
+          }
+          while (rs.next()) {
+            line.setLength(0);
+            for (int i = 1; i <= numCol; i++) {
+              line.append(i > 1 ? "," : "").append(csv(rs.getString(i)));
+            }
+            out.write(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+            fetched++;
+          }
+        } finally {
+          rs.close();
+        }
+        rows += fetched;
+        if (fetched < FETCH_SIZE) {
+          break;
+        }
+      }
+      stmt.executeUpdate("CLOSE export");
+      conn.commit();
+      return rows;
+    } catch (SQLException | IOException | RuntimeException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      stmt.close();
+      conn.setAutoCommit(autoCommit);
+    }
+  }
+
+  // Quotes a CSV field the way COPY ... CSV does: only when needed.
+  static String csv(String value) {
+    if (value == null) {
+      return "";
+    }
+    value = value.trim();
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+      return value;
+    }
+    return "\"" + value.replace("\"", "\"\"") + "\"";
+  }
+
+  // One partition of the export, run on a borrowed connection.
+  private static class Partition implements Callable < Long > {
+    private final BlockingQueue < Connection > pool;
+    private final String query;
+    private final Path file;
+
+    Partition(BlockingQueue < Connection > pool, String query, Path file) {
+      this.pool = pool;
+      this.query = query;
+      this.file = file;
+    }
+
+    public Long call() throws Exception {
+      Connection conn = this.pool.take();
+      try {
+        return exportQuery(conn, this.query, this.file);
+      } finally {
+        this.pool.add(conn);
+      }
+    }
+  }
+}
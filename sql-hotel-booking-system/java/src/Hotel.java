@@ -13,17 +13,28 @@
  import java.sql.DriverManager;
  import java.sql.Connection;
  import java.sql.Statement;
+ import java.sql.CallableStatement;
+ import java.sql.Timestamp;
+ import java.sql.Types;
  import java.sql.ResultSet;
  import java.sql.ResultSetMetaData;
  import java.sql.SQLException;
  import java.io.File;
  import java.io.FileReader;
- import java.io.BufferedReader;
- import java.io.InputStreamReader;
  import java.util.List;
  import java.util.ArrayList;
+ import java.util.Map;
+ import java.util.HashMap;
+ import java.util.Comparator;
+ import java.util.concurrent.ExecutorService;
+ import java.util.concurrent.ExecutionException;
+ import java.util.concurrent.Executors;
+ import java.util.concurrent.Future;
+ import java.util.concurrent.TimeUnit;
+ import java.util.concurrent.TimeoutException;
  import java.lang.Math;
- import java.time.LocalDateTime; // Import so we keep track of when we update the hotel info 
+ import java.time.LocalDate;
+ import java.nio.file.Paths;
  
  /**
   * This class defines a simple embedded SQL utility class that is designed to
@@ -34,12 +45,40 @@
  
    // reference to physical database connection.
    private Connection _connection = null;
-   private static String userId = ""; // stores the user ID
+   // connection parameters, kept so background workers can open their own connections
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+   // booking admission layer, created on first booking
+   private BookingAdmission _admission = null;
+   // Hotel whose admission layer is used instead of an own one, see shareAdmission
+   private Hotel _admissionOwner = null;
+   // timeout budgets, cancellation and retry counters for the statements of this connection
+   private final QueryGuard _guard = new QueryGuard();
+   // menu operation currently running, selects the timeout budget of its statements
+   private String _operation = "default";
+   // statement_timeout currently set on the connection in seconds, -1 when unknown
+   private int _timeout = -1;
+   // shard map and one Hotel per shard (this one included), null/empty when the database is not sharded
+   private ShardMap _shards = null;
+   private final Map < String, Hotel > _shardNodes = new HashMap < String, Hotel > ();
+   // server-side functions installed by MigrationRunner from sql/migrations, prepared once per connection
+   static final String UPDATE_ROOM_INFO = "{? = call update_room_info_v1(?, ?, ?, ?, ?)}";
+   static final String PLACE_ROOM_REPAIR_REQUEST = "{? = call place_room_repair_request_v1(?, ?, ?, ?, ?)}";
+   private final Map < String, CallableStatement > _calls = new HashMap < String, CallableStatement > ();
+   // runs the per-shard parts of cross-hotel queries in parallel
+   private static final ExecutorService SCATTER = Executors.newCachedThreadPool(r -> {
+     Thread t = new Thread(r, "shard-scatter");
+     t.setDaemon(true);
+     return t;
+   });
+   // stores the user ID, per thread so replayed sessions can run side by side
+   private static final ThreadLocal < String > userId = ThreadLocal.withInitial(() -> "");
  
    // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-     new InputStreamReader(System.in));
+   // This variable can be global for convenience; each thread reads its own
+   // session: the keyboard, or a trace being replayed (see Workload).
+   static final Workload.Input in = new Workload.Input();
  
    /**
     * Creates a new instance of Hotel 
@@ -59,6 +98,9 @@
        System.out.println("Connection URL: " + url + "\n");
  
        // obtain a physical connection
+       this._url = url;
+       this._user = user;
+       this._passwd = passwd;
        this._connection = DriverManager.getConnection(url, user, passwd);
        System.out.println("Done");
      } catch (Exception e) {
@@ -68,12 +110,201 @@
      } //end catch
    } //end Hotel
  
+   /**
+    * Connects without the console output of the public constructor and,
+    * unlike it, reports a failed connection to the caller instead of exiting.
+    * Used for the shard nodes.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   private Hotel(String url, String user, String passwd) throws SQLException {
+     this._url = url;
+     this._user = user;
+     this._passwd = passwd;
+     this._connection = DriverManager.getConnection(url, user, passwd);
+   }
+ 
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public double calculateDistance(double lat1, double long1, double lat2, double long2) {
      double t1 = (lat1 - lat2) * (lat1 - lat2);
      double t2 = (long1 - long2) * (long1 - long2);
      return Math.sqrt(t1 + t2);
    }
+   /**
+    * Marks the start of a menu operation. Statements issued until the next
+    * call get the timeout budget of that operation, enforced by the server
+    * through statement_timeout (set only when the budget changes).
+    *
+    * @param operation the operation name, e.g. "viewAllRoomRepairHistory"
+    */
+   public void beginOperation(String operation) {
+     this._operation = operation;
+     in.operation(operation);
+     int budget = this._guard.budgetFor(operation);
+     if (budget != this._timeout) {
+       try {
+         QueryGuard.limit(this._connection, budget);
+         this._timeout = budget;
+       } catch (SQLException e) {
+         // left to the watchdog; a broken connection fails the next statement anyway
+         this._timeout = -1;
+       }
+     }
+   }
+ 
+   /**
+    * @return the timeout, cancellation and retry counters of this connection
+    */
+   public QueryGuard metrics() {
+     return this._guard;
+   }
+ 
+   /**
+    * A unit of work run by executeTransaction. It may be run several times
+    * when the transaction is retried, so it must not read user input.
+    */
+   public interface Transaction < T > {
+     T run(Hotel esql) throws SQLException;
+   }
+ 
+   /**
+    * Method to execute several statements as one SERIALIZABLE transaction.
+    * The work is committed when it returns and rolled back when it throws
+    * anything;
+    * serialization failures and deadlocks are retried with backoff up to
+    * QueryGuard.MAX_RETRIES times.
+    *
+    * @param work the statements to run
+    * @return the value returned by the work
+    * @throws java.sql.SQLException when the transaction failed
+    */
+   public < T > T executeTransaction(Transaction < T > work) throws SQLException {
+     int isolation = this._connection.getTransactionIsolation();
+     this._connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+     this._connection.setAutoCommit(false);
+     try {
+       for (int attempt = 1;; attempt++) {
+         try {
+           T result = work.run(this);
+           this._connection.commit();
+           return result;
+         } catch (SQLException e) {
+           this._connection.rollback();
+           if (!QueryGuard.isRetryable(e) || attempt > QueryGuard.MAX_RETRIES) {
+             throw e;
+           }
+           try {
+             this._guard.backoff(attempt);
+           } catch (InterruptedException ie) {
+             Thread.currentThread().interrupt();
+             throw e;
+           }
+         } catch (RuntimeException e) {
+           // roll back before setAutoCommit(true) below would commit the half-done work
+           this._connection.rollback();
+           throw e;
+         }
+       }
+     } finally {
+       this._connection.setAutoCommit(true);
+       this._connection.setTransactionIsolation(isolation);
+     }
+   } //end executeTransaction
+ 
+   /**
+    * Method to call a server-side function through a prepared
+    * CallableStatement whose parameters are already set. The call is one
+    * round trip and, in autocommit mode, one READ COMMITTED transaction; it is
+    * retried with backoff on deadlocks like executeTransaction.
+    *
+    * @param call the prepared call, see prepareCall
+    * @throws java.sql.SQLException when the call failed
+    */
+   public void executeCall(CallableStatement call) throws SQLException {
+     for (int attempt = 1;; attempt++) {
+       QueryGuard.Watch watch = this._guard.watch(call, this._guard.budgetFor(this._operation));
+       try {
+         call.execute();
+         return;
+       } catch (SQLException e) {
+         if (!QueryGuard.isRetryable(e) || attempt > QueryGuard.MAX_RETRIES) {
+           throw this._guard.failed(e, watch);
+         }
+       } finally {
+         watch.disarm();
+       }
+       try {
+         this._guard.backoff(attempt);
+       } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while retrying " + this._operation);
+       }
+     }
+   } //end executeCall
+ 
+   /**
+    * Returns the CallableStatement for a call, preparing it on first use. It
+    * stays open for the lifetime of the connection.
+    */
+   private CallableStatement prepareCall(String sql, int returnType) throws SQLException {
+     CallableStatement call = this._calls.get(sql);
+     if (call == null) {
+       call = this._connection.prepareCall(sql);
+       call.registerOutParameter(1, returnType);
+       this._calls.put(sql, call);
+     }
+     return call;
+   }
+ 
+   /**
+    * Updates the price and/or image URL of a room and logs the update, in one
+    * call to update_room_info_v1.
+    *
+    * @param price the new price, or null to keep it
+    * @param imageURL the new image URL, or null to keep it
+    * @return the logged update time, or null when the room does not exist
+    * @throws java.sql.SQLException when the call failed
+    */
+   public Timestamp callUpdateRoomInfo(int managerID, int hotelID, int roomNumber, Integer price, String imageURL) throws SQLException {
+     CallableStatement call = prepareCall(UPDATE_ROOM_INFO, Types.TIMESTAMP);
+     call.setInt(2, managerID);
+     call.setInt(3, hotelID);
+     call.setInt(4, roomNumber);
+     if (price == null) {
+       call.setNull(5, Types.INTEGER);
+     } else {
+       call.setInt(5, price);
+     }
+     if (imageURL == null) {
+       call.setNull(6, Types.VARCHAR);
+     } else {
+       call.setString(6, imageURL);
+     }
+     executeCall(call);
+     return call.getTimestamp(1);
+   }
+ 
+   /**
+    * Places a repair request, in one call to place_room_repair_request_v1
+    * which also rejects dates on which the room is booked or under repair.
+    *
+    * @return NONE when the request was placed, otherwise the conflict
+    * @throws java.sql.SQLException when the call failed
+    */
+   public RoomCalendar.Conflict callPlaceRoomRepairRequest(int managerID, int companyID, int hotelID, int roomNumber, LocalDate repairDate) throws SQLException {
+     CallableStatement call = prepareCall(PLACE_ROOM_REPAIR_REQUEST, Types.VARCHAR);
+     call.setInt(2, managerID);
+     call.setInt(3, companyID);
+     call.setInt(4, hotelID);
+     call.setInt(5, roomNumber);
+     call.setDate(6, java.sql.Date.valueOf(repairDate));
+     executeCall(call);
+     return RoomCalendar.Conflict.valueOf(call.getString(1));
+   }
+ 
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -84,12 +315,17 @@
    public void executeUpdate(String sql) throws SQLException {
      // creates a statement object
      Statement stmt = this._connection.createStatement();
- 
-     // issues the update instruction
-     stmt.executeUpdate(sql);
- 
-     // close the instruction
-     stmt.close();
+     QueryGuard.Watch watch = this._guard.watch(stmt, this._guard.budgetFor(this._operation));
+     try {
+       // issues the update instruction
+       stmt.executeUpdate(sql);
+     } catch (SQLException e) {
+       throw this._guard.failed(e, watch);
+     } finally {
+       // close the instruction
+       watch.disarm();
+       stmt.close();
+     }
    } //end executeUpdate
  
    /**
@@ -104,36 +340,46 @@
    public int executeQueryAndPrintResult(String query) throws SQLException {
      // creates a statement object
      Statement stmt = this._connection.createStatement();
- 
-     // issues the query instruction
-     ResultSet rs = stmt.executeQuery(query);
- 
-     /*
-      ** obtains the metadata object for the returned result set.  The metadata
-      ** contains row and column info.
-      */
-     ResultSetMetaData rsmd = rs.getMetaData();
-     int numCol = rsmd.getColumnCount();
-     int rowCount = 0;
- 
-     // iterates through the result set and output them to standard out.
-     boolean outputHeader = true;
-     while (rs.next()) {
-       if (outputHeader) {
-         for (int i = 1; i <= numCol; i++) {
-           System.out.printf("%-15s\t", rsmd.getColumnName(i).trim()); //Modified to fix align issue 
+     QueryGuard.Watch watch = this._guard.watch(stmt, this._guard.budgetFor(this._operation));
+     ResultSet rs = null;
+     try {
+       // issues the query instruction
+       rs = stmt.executeQuery(query);
+ 
+       /*
+        ** obtains the metadata object for the returned result set.  The metadata
+        ** contains row and column info.
+        */
+       ResultSetMetaData rsmd = rs.getMetaData();
+       int numCol = rsmd.getColumnCount();
+       int rowCount = 0;
+ 
+       // iterates through the result set and output them to standard out.
+       boolean outputHeader = true;
+       while (rs.next()) {
+         if (outputHeader) {
+           for (int i = 1; i <= numCol; i++) {
+             System.out.printf("%-15s\t", rsmd.getColumnName(i).trim()); //Modified to fix align issue 
+           }
+           System.out.println();
+           outputHeader = false;
+         }
+         for (int i = 1; i <= numCol; ++i) {
+           System.out.printf("%-15s\t", rs.getString(i).trim()); //Modified to fix align issue 
          }
          System.out.println();
-         outputHeader = false;
-       }
-       for (int i = 1; i <= numCol; ++i) {
-         System.out.printf("%-15s\t", rs.getString(i).trim()); //Modified to fix align issue 
+         ++rowCount;
+       } //end while
+       return rowCount;
+     } catch (SQLException e) {
+       throw this._guard.failed(e, watch);
+     } finally {
+       watch.disarm();
+       if (rs != null) {
+         rs.close();
        }
-       System.out.println();
-       ++rowCount;
-     } //end while
-     stmt.close();
-     return rowCount;
+       stmt.close();
+     }
    } //end executeQuery
  
    /**
@@ -148,29 +394,37 @@
    public List < List < String >> executeQueryAndReturnResult(String query) throws SQLException {
      // creates a statement object
      Statement stmt = this._connection.createStatement();
- 
-     // issues the query instruction
-     ResultSet rs = stmt.executeQuery(query);
- 
-     /*
-      ** obtains the metadata object for the returned result set.  The metadata
-      ** contains row and column info.
-      */
-     ResultSetMetaData rsmd = rs.getMetaData();
-     int numCol = rsmd.getColumnCount();
-     int rowCount = 0;
- 
-     // iterates through the result set and saves the data returned by the query.
-     boolean outputHeader = false;
-     List < List < String >> result = new ArrayList < List < String >> ();
-     while (rs.next()) {
-       List < String > record = new ArrayList < String > ();
-       for (int i = 1; i <= numCol; ++i)
-         record.add(rs.getString(i));
-       result.add(record);
-     } //end while
-     stmt.close();
-     return result;
+     QueryGuard.Watch watch = this._guard.watch(stmt, this._guard.budgetFor(this._operation));
+     ResultSet rs = null;
+     try {
+       // issues the query instruction
+       rs = stmt.executeQuery(query);
+ 
+       /*
+        ** obtains the metadata object for the returned result set.  The metadata
+        ** contains row and column info.
+        */
+       ResultSetMetaData rsmd = rs.getMetaData();
+       int numCol = rsmd.getColumnCount();
+ 
+       // iterates through the result set and saves the data returned by the query.
+       List < List < String >> result = new ArrayList < List < String >> ();
+       while (rs.next()) {
+         List < String > record = new ArrayList < String > ();
+         for (int i = 1; i <= numCol; ++i)
+           record.add(rs.getString(i));
+         result.add(record);
+       } //end while
+       return result;
+     } catch (SQLException e) {
+       throw this._guard.failed(e, watch);
+     } finally {
+       watch.disarm();
+       if (rs != null) {
+         rs.close();
+       }
+       stmt.close();
+     }
    } //end executeQueryAndReturnResult
  
    /**
@@ -184,18 +438,28 @@
    public int executeQuery(String query) throws SQLException {
      // creates a statement object
      Statement stmt = this._connection.createStatement();
+     QueryGuard.Watch watch = this._guard.watch(stmt, this._guard.budgetFor(this._operation));
+     ResultSet rs = null;
+     try {
+       // issues the query instruction
+       rs = stmt.executeQuery(query);
  
-     // issues the query instruction
-     ResultSet rs = stmt.executeQuery(query);
- 
-     int rowCount = 0;
+       int rowCount = 0;
  
-     // iterates through the result set and count nuber of results.
-     while (rs.next()) {
-       rowCount++;
-     } //end while
-     stmt.close();
-     return rowCount;
+       // iterates through the result set and count nuber of results.
+       while (rs.next()) {
+         rowCount++;
+       } //end while
+       return rowCount;
+     } catch (SQLException e) {
+       throw this._guard.failed(e, watch);
+     } finally {
+       watch.disarm();
+       if (rs != null) {
+         rs.close();
+       }
+       stmt.close();
+     }
    }
  
    /**
@@ -208,34 +472,214 @@
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-     Statement stmt = this._connection.createStatement();
- 
-     ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')", sequence));
-     if (rs.next())
-       return rs.getInt(1);
-     return -1;
+     return getNewUserID(String.format("Select currval('%s')", sequence));
    }
  
    public int getNewUserID(String sql) throws SQLException {
-     Statement stmt = this._connection.createStatement();
-     ResultSet rs = stmt.executeQuery(sql);
-     if (rs.next())
-       return rs.getInt(1);
+     List < List < String >> result = executeQueryAndReturnResult(sql);
+     if (!result.isEmpty())
+       return Integer.parseInt(result.get(0).get(0));
      return -1;
    }
+ 
    /**
-    * Method to close the physical connection if it is open.
+    * Opens an additional physical connection to the same database. Used by
+    * the parallel workers (e.g. the pricing engine) which must not share the
+    * menu's connection. The caller is responsible for closing it.
+    *
+    * @return a new connection
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection() throws SQLException {
+     return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }
+ 
+   /**
+    * Returns the booking admission layer, creating it on first use. All
+    * bookings go through it so that concurrent requests for the same hotel
+    * and date are serialized and batched instead of racing.
+    *
+    * @return the admission layer of this connection
+    */
+   public synchronized BookingAdmission admission() {
+     if (this._admissionOwner != null) {
+       return this._admissionOwner.admission();
+     }
+     if (this._admission == null) {
+       this._admission = new BookingAdmission(this);
+     }
+     return this._admission;
+   }
+ 
+   /**
+    * Makes the bookings of this Hotel, on every shard, go through the
+    * admission layers of another Hotel connected to the same databases, so
+    * that clients running in one process share one layer (and one set of
+    * stripe connections) per shard, and bookings for the same hotel and date
+    * stay serialized across all of them. Call it after attachShards.
+    *
+    * @param owner the Hotel whose admission layers are used; it shuts them down in its cleanup
+    * @throws java.sql.SQLException when failed to connect to a shard
+    */
+   public void shareAdmission(Hotel owner) throws SQLException {
+     if (this._shards == null) {
+       this._admissionOwner = owner;
+       return;
+     }
+     for (ShardMap.Shard shard: this._shards.shards()) {
+       connectShard(shard)._admissionOwner = owner.connectShard(shard);
+     }
+   }
+ 
+   /**
+    * Spreads the hotels over the shards of the given map. The shard whose
+    * database is the one this object is connected to reuses this connection;
+    * the others are connected now.
+    *
+    * @param shards the shard map
+    * @throws java.sql.SQLException when failed to connect to a shard
+    */
+   public void attachShards(ShardMap shards) throws SQLException {
+     this._shards = shards;
+     for (ShardMap.Shard shard: shards.shards()) {
+       connectShard(shard);
+     }
+   }
+ 
+   private synchronized Hotel connectShard(ShardMap.Shard shard) throws SQLException {
+     Hotel node = this._shardNodes.get(shard.name);
+     if (node == null) {
+       String url = "jdbc:postgresql://localhost:" + shard.port + "/" + shard.dbname;
+       node = url.equals(this._url) ? this : new Hotel(url, this._user, this._passwd);
+       this._shardNodes.put(shard.name, node);
+     }
+     return node;
+   }
+ 
+   /**
+    * Routes a per-hotel operation: returns the Hotel connected to the shard
+    * holding the hotel, running the current operation's timeout budget.
+    * Without sharding this is the object itself.
+    *
+    * @param hotelID the hotel the statements are about
+    * @return the Hotel to issue them on
+    * @throws java.sql.SQLException when failed to connect to the shard
+    */
+   public Hotel shardFor(int hotelID) throws SQLException {
+     if (this._shards == null) {
+       return this;
+     }
+     Hotel node = connectShard(this._shards.shardOf(hotelID));
+     node.beginOperation(this._operation);
+     return node;
+   }
+ 
+   /**
+    * @return one Hotel per shard, or just this object without sharding
+    * @throws java.sql.SQLException when failed to connect to a shard
     */
+   public List < Hotel > allShards() throws SQLException {
+     List < Hotel > nodes = new ArrayList < Hotel > ();
+     if (this._shards == null) {
+       nodes.add(this);
+       return nodes;
+     }
+     for (ShardMap.Shard shard: this._shards.shards()) {
+       Hotel node = connectShard(shard);
+       node.beginOperation(this._operation);
+       nodes.add(node);
+     }
+     return nodes;
+   }
+ 
+   /**
+    * Method to execute a cross-hotel query (i.e. SELECT) on every shard in
+    * parallel. The rows of all shards are concatenated; ordering and limits
+    * have to be applied again by the caller. With a single shard the query
+    * runs on the calling thread.
+    *
+    * @param query the input query string
+    * @return the rows of every shard
+    * @throws java.lang.Exception the exception the query failed with on a shard
+    */
+   public List < List < String >> executeQueryOnAllShards(final String query) throws Exception {
+     List < Hotel > nodes = allShards();
+     if (nodes.size() == 1) {
+       return nodes.get(0).executeQueryAndReturnResult(query);
+     }
+     List < Future < List < List < String >>> > parts = new ArrayList < Future < List < List < String >>> > ();
+     for (final Hotel node: nodes) {
+       parts.add(SCATTER.submit(() -> node.executeQueryAndReturnResult(query)));
+     }
+     List < List < String >> result = new ArrayList < List < String >> ();
+     for (Future < List < List < String >>> part: parts) {
+       try {
+         result.addAll(part.get());
+       } catch (ExecutionException e) {
+         // rethrow what the shard failed with, so timeouts are still described as such
+         Throwable cause = e.getCause();
+         if (cause instanceof Exception) {
+           throw (Exception) cause;
+         }
+         throw e;
+       }
+     }
+     return result;
+   }
+ 
+   /**
+    * Prints rows gathered from several shards in the same layout as
+    * executeQueryAndPrintResult.
+    *
+    * @param columns the column names
+    * @param rows the rows to print
+    * @return the number of rows printed
+    */
+   public static int printResult(String[] columns, List < List < String >> rows) {
+     if (rows.isEmpty()) {
+       return 0;
+     }
+     for (String column: columns) {
+       System.out.printf("%-15s\t", column);
+     }
+     System.out.println();
+     for (List < String > row: rows) {
+       for (String value: row) {
+         System.out.printf("%-15s\t", value.trim());
+       }
+       System.out.println();
+     }
+     return rows.size();
+   }
  
    public static String getUserId() {
-     return userId;
+     return userId.get();
    }
  
    public static void setUserId(String userId) {
-     Hotel.userId = userId;
+     Hotel.userId.set(userId);
    }
  
+   /**
+    * Method to close the physical connection if it is open.
+    */
    public void cleanup() {
+     for (Hotel node: this._shardNodes.values()) {
+       if (node != this) {
+         node.cleanup();
+       }
+     }
+     if (this._admission != null) {
+       this._admission.shutdown();
+     }
+     for (CallableStatement call: this._calls.values()) {
+       try {
+         call.close();
+       } catch (SQLException e) {
+         // ignored.
+       }
+     }
+     this._calls.clear();
      try {
        if (this._connection != null) {
          this._connection.close();
@@ -271,98 +715,21 @@
        String dbport = args[1];
        String user = args[2];
        esql = new Hotel(dbname, dbport, user, "");
- 
-       boolean keepon = true;
-       while (keepon) {
-         // These are sample SQL statements
-         System.out.println("MAIN MENU");
-         System.out.println("---------");
-         System.out.println("1. Create user");
-         System.out.println("2. Log in");
-         System.out.println("9. < EXIT");
-         String authorisedUser = null;
-         switch (readChoice()) {
-         case 1:
-           CreateUser(esql);
-           break;
-         case 2:
-           authorisedUser = LogIn(esql);
-           break;
-         case 9:
-           keepon = false;
-           break;
-         default:
-           System.out.println("Unrecognized choice!");
-           break;
-         } //end switch
-         if (authorisedUser != null) {
-           boolean usermenu = true;
-           while (usermenu) {
-             System.out.println("MAIN MENU");
-             System.out.println("---------");
-             System.out.println("1. View Hotels within 30 units");
-             System.out.println("2. View Rooms");
-             System.out.println("3. Book a Room");
-             System.out.println("4. View recent booking history");
- 
-             //the following functionalities basically used by managers
-             System.out.println("5. Update Room Information");
-             System.out.println("6. View 5 recent Room Updates Info");
-             System.out.println("7. View booking history of the hotel");
-             System.out.println("8. View 5 regular Customers");
-             System.out.println("9. Place room repair Request to a company");
-             System.out.println("10. View room repair Requests history");
-             System.out.println("11. View All room repair Requests history");
- 
-             System.out.println(".........................");
-             System.out.println("20. Log out");
-             switch (readChoice()) {
-             case 1:
-               browseHotels(esql);
-               break; // Fixed viewHotels to browseHotels
-             case 2:
-               viewRooms(esql);
-               break;
-             case 3:
-               bookRooms(esql);
-               break;
-             case 4:
-               viewRecentBookingsfromCustomer(esql);
-               break;
-             case 5:
-               updateRoomInfo(esql);
-               break;
-             case 6:
-               viewRecentUpdates(esql);
-               break;
-             case 7:
-               viewBookingHistoryofHotel(esql);
-               break;
-             case 8:
-               viewRegularCustomers(esql);
-               break;
-             case 9:
-               placeRoomRepairRequests(esql);
-               break;
-             case 10:
-               viewRoomRepairHistory(esql);
-               break;
-             case 11:
-               viewAllRoomRepairHistory(esql);
-               break;
-             case 20:
-               usermenu = false;
-               break;
-             default:
-               System.out.println("Unrecognized choice!");
-               break;
-             }
-           }
-         }
-       } //end while
+       // -Dhotel.shards=<file> spreads the hotels over several databases, see ShardMap.
+       String shardFile = System.getProperty("hotel.shards");
+       if (shardFile != null) {
+         esql.attachShards(ShardMap.load(shardFile));
+       }
+       // -Dhotel.record=<file> records the session for WorkloadReplayer.
+       String traceFile = System.getProperty("hotel.record");
+       if (traceFile != null) {
+         Workload.startRecording(traceFile);
+       }
+       runMenu(esql);
      } catch (Exception e) {
        System.err.println(e.getMessage());
      } finally {
+       Workload.stopRecording();
        // make sure to cleanup the created table and close the connection.
        try {
          if (esql != null) {
@@ -376,6 +743,127 @@
      } //end try
    } //end main
  
+   /**
+    * Runs the menus until the user exits, reading the input of the calling
+    * thread's session.
+    *
+    * @param esql the connection the menu operations run on
+    */
+   public static void runMenu(Hotel esql) {
+     boolean keepon = true;
+     while (keepon) {
+       // These are sample SQL statements
+       System.out.println("MAIN MENU");
+       System.out.println("---------");
+       System.out.println("1. Create user");
+       System.out.println("2. Log in");
+       System.out.println("9. < EXIT");
+       String authorisedUser = null;
+       switch (readChoice()) {
+       case 1:
+         CreateUser(esql);
+         break;
+       case 2:
+         authorisedUser = LogIn(esql);
+         break;
+       case 9:
+         keepon = false;
+         break;
+       default:
+         System.out.println("Unrecognized choice!");
+         break;
+       } //end switch
+       if (authorisedUser != null) {
+         boolean usermenu = true;
+         while (usermenu) {
+           System.out.println("MAIN MENU");
+           System.out.println("---------");
+           System.out.println("1. View Hotels within 30 units");
+           System.out.println("2. View Rooms");
+           System.out.println("3. Book a Room");
+           System.out.println("4. View recent booking history");
+ 
+           //the following functionalities basically used by managers
+           System.out.println("5. Update Room Information");
+           System.out.println("6. View 5 recent Room Updates Info");
+           System.out.println("7. View booking history of the hotel");
+           System.out.println("8. View 5 regular Customers");
+           System.out.println("9. Place room repair Request to a company");
+           System.out.println("10. View room repair Requests history");
+           System.out.println("11. View All room repair Requests history");
+           System.out.println("12. Run dynamic pricing");
+           System.out.println("13. View query metrics");
+           System.out.println("14. Search hotels by name");
+           System.out.println("15. Search customers by name");
+           System.out.println("16. Export booking and repair history");
+           System.out.println("17. Suggest room repair dates");
+ 
+           System.out.println(".........................");
+           System.out.println("20. Log out");
+           switch (readChoice()) {
+           case 1:
+             browseHotels(esql);
+             break; // Fixed viewHotels to browseHotels
+           case 2:
+             viewRooms(esql);
+             break;
+           case 3:
+             bookRooms(esql);
+             break;
+           case 4:
+             viewRecentBookingsfromCustomer(esql);
+             break;
+           case 5:
+             updateRoomInfo(esql);
+             break;
+           case 6:
+             viewRecentUpdates(esql);
+             break;
+           case 7:
+             viewBookingHistoryofHotel(esql);
+             break;
+           case 8:
+             viewRegularCustomers(esql);
+             break;
+           case 9:
+             placeRoomRepairRequests(esql);
+             break;
+           case 10:
+             viewRoomRepairHistory(esql);
+             break;
+           case 11:
+             viewAllRoomRepairHistory(esql);
+             break;
+           case 12:
+             runDynamicPricing(esql);
+             break;
+           case 13:
+             System.out.println("Query metrics: " + esql.metrics());
+             break;
+           case 14:
+             searchHotels(esql);
+             break;
+           case 15:
+             searchCustomers(esql);
+             break;
+           case 16:
+             exportHistory(esql);
+             break;
+           case 17:
+             suggestRepairDates(esql);
+             break;
+           case 20:
+             usermenu = false;
+             break;
+           default:
+             System.out.println("Unrecognized choice!");
+             break;
+           }
+         }
+       }
+     } //end while
+   } //end runMenu
+ 
    public static void Greeting() {
      System.out.println(
        "\n\n*******************************************************\n" +
@@ -392,6 +880,7 @@
      // returns only if a correct value is given.
      do {
        System.out.print("Please make your choice: ");
+       in.choice();
        try { // read the integer, parse it and break.
          input = Integer.parseInt(in.readLine());
          break;
@@ -408,17 +897,42 @@
     **/
    public static void CreateUser(Hotel esql) {
      try {
+       esql.beginOperation("CreateUser");
        System.out.print("\tEnter name: ");
        String name = in.readLine();
        System.out.print("\tEnter password: ");
-       String password = in.readLine();
+       String password = in.readPassword(null);
        String type = "Customer";
        String query = String.format("INSERT INTO USERS (name, password, userType) VALUES ('%s','%s', '%s')", name, password, type);
        esql.executeUpdate(query);
-       System.out.println("User successfully created with userID = " + esql.getNewUserID("SELECT last_value FROM users_userID_seq"));
+       // currval is private to this connection, unlike last_value, so concurrent clients cannot mix up IDs.
+       int newUserID = esql.getCurrSeqVal("users_userid_seq");
+       // Users are replicated on every shard; the userID is assigned by this database and copied to the others.
+       // ShardRebalancer init interleaves users_userid_seq across shards, so IDs assigned on different shards never collide.
+       List < Hotel > copied = new ArrayList < Hotel > ();
+       copied.add(esql);
+       try {
+         for (Hotel shard: esql.allShards()) {
+           if (shard != esql) {
+             shard.executeUpdate(String.format("INSERT INTO USERS (userID, name, password, userType) VALUES (%d, '%s','%s', '%s')", newUserID, name, password, type));
+             copied.add(shard);
+           }
+         }
+       } catch (SQLException e) {
+         // A user on only some shards could log in or not depending on the shard; take it back everywhere.
+         for (Hotel shard: copied) {
+           try {
+             shard.executeUpdate(String.format("DELETE FROM USERS WHERE userID = %d", newUserID));
+           } catch (SQLException cleanup) {
+             System.err.println("User " + newUserID + " could not be removed from a shard: " + cleanup.getMessage());
+           }
+         }
+         throw e;
+       }
+       System.out.println("User successfully created with userID = " + newUserID);
  
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
      }
    } //end CreateUser
  
@@ -436,10 +950,11 @@
  
    public static String LogIn(Hotel esql) {
      try {
+       esql.beginOperation("LogIn");
        System.out.print("\tEnter userID: ");
        String userID = in.readLine();
        System.out.print("\tEnter password: ");
-       String password = in.readLine();
+       String password = in.readPassword(userID);
  
        String query = String.format("SELECT * FROM USERS WHERE userID = '%s' AND password = '%s'", userID, password);
        int userNum = esql.executeQuery(query);
@@ -450,7 +965,7 @@
        System.out.println("Invalid USER ID or password. Please try again.");
        return null;
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
        return null;
      }
    } //end
@@ -494,7 +1009,7 @@
  
      // When it reaches here, we are sure they are manager, but we still need to check if they are the manager of the given hotelID's Hotel.
      String query = String.format("SELECT * FROM Hotel WHERE managerUserID = %s AND hotelID = %d", getUserId(), hotelID);
-     List < List < String >> result = esql.executeQueryAndReturnResult(query);
+     List < List < String >> result = esql.shardFor(hotelID).executeQueryAndReturnResult(query);
  
      if (result.isEmpty()) {
        System.out.println("You are not authorized to access hotels that are outside of your management.");
@@ -503,9 +1018,46 @@
      return true;
    }
  
+   //Helper Function To Verify Admin, for actions that span every hotel in the system
+   public static boolean validateAdmin(Hotel esql) throws Exception {
+     String userTypeQuery = String.format("SELECT userType FROM Users WHERE userID = %s", getUserId());
+     List < List < String >> userTypeResult = esql.executeQueryAndReturnResult(userTypeQuery);
+ 
+     if (!userTypeResult.isEmpty() && userTypeResult.get(0).get(0).trim().equalsIgnoreCase("admin")) {
+       return true;
+     }
+     System.out.println("Sorry, only admins are authorized to perform this action.");
+     return false;
+   }
+ 
+   //Helper Function To Verify Staff (admins and managers), for actions that are not bound to one hotel
+   public static boolean validateStaff(Hotel esql) throws Exception {
+     String userTypeQuery = String.format("SELECT userType FROM Users WHERE userID = %s", getUserId());
+     List < List < String >> userTypeResult = esql.executeQueryAndReturnResult(userTypeQuery);
+ 
+     if (!userTypeResult.isEmpty()) {
+       String userType = userTypeResult.get(0).get(0).trim();
+       if (userType.equalsIgnoreCase("admin") || userType.equalsIgnoreCase("manager")) {
+         return true;
+       }
+     }
+     System.out.println("Sorry, You are not authorized to search customers.");
+     return false;
+   }
+ 
+   //Helper Function To build the ranked name search over a char column: prefix matches first, then fuzzy (trigram) matches by similarity.
+   public static String nameSearchQuery(String columns, String table, String nameColumn, String filter, String term) {
+     String name = "lower(rtrim(" + nameColumn + "))"; // matches the expression of the trigram index
+     String quoted = term.trim().toLowerCase().replace("'", "''");
+     String prefix = quoted.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+     return String.format("SELECT %s, round(similarity(%s, '%s')::numeric, 2) AS score FROM %s WHERE %s(%s LIKE '%s%%' OR %s %% '%s') ORDER BY (%s LIKE '%s%%') DESC, similarity(%s, '%s') DESC, %s LIMIT 10",
+       columns, name, quoted, table, filter, name, prefix, name, quoted, name, prefix, name, quoted, name);
+   }
+ 
    // FUNCTION X 1
    public static void browseHotels(Hotel esql) {
      try {
+       esql.beginOperation("browseHotels");
        //Get User Input
        System.out.print("\tEnter latitude: ");
        double latitude = Double.parseDouble(in.readLine());
@@ -514,8 +1066,10 @@
  
        //SQL
        String query = String.format("SELECT hotelID, hotelName, latitude, longitude FROM Hotel WHERE calculate_distance(latitude, longitude, %f, %f) <= 30.0", latitude, longitude);
-       int rowCount = esql.executeQueryAndPrintResult(query);
-       // This query selects the required attributes from the Hotel table with WHERE clauses calling the SQL function to check the distance condition.
+       List < List < String >> hotels = esql.executeQueryOnAllShards(query);
+       hotels.sort(Comparator.comparing(row -> Integer.parseInt(row.get(0))));
+       int rowCount = printResult(new String[] { "hotelid", "hotelname", "latitude", "longitude" }, hotels);
+       // This query selects the required attributes from the Hotel table with WHERE clauses calling the SQL function to check the distance condition. It runs on every shard in parallel and the hotels are merged by hotelID.
  
        // Some header would still be print, the only way to avoid that is to do executeQueryAndGetReuslt, first check if it is empty then call executeQueryAndPrintResult, HOWEVER, this would be doing the SQL part twice, which is very not ideal.
        if (rowCount == 0) {
@@ -523,13 +1077,14 @@
        }
  
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
      }
    }
  
    // FUNCTION X 2
    public static void viewRooms(Hotel esql) {
      try {
+       esql.beginOperation("viewRooms");
  
        System.out.print("Enter hotel ID: ");
        String hotelID = in.readLine();
@@ -537,10 +1092,15 @@
        String date = in.readLine();
  
        //SQL
-       String query = String.format("SELECT R.roomNumber, R.price, H.hotelName FROM Rooms R, Hotel H WHERE R.hotelID = '%s' AND R.hotelID = H.hotelID AND R.roomNumber NOT IN (SELECT RBOOK.roomNumber FROM RoomBookings RBOOK WHERE RBOOK.hotelID = '%s' AND RBOOK.bookingDate = '%s') ORDER BY R.roomNumber", hotelID, hotelID, date);
+       String query = String.format("SELECT R.roomNumber, COALESCE(P.price, R.price), H.hotelName FROM Rooms R JOIN Hotel H ON R.hotelID = H.hotelID LEFT JOIN RoomPrices P ON P.hotelID = R.hotelID AND P.roomNumber = R.roomNumber AND P.priceDate = '%s' WHERE R.hotelID = '%s' AND R.roomNumber NOT IN (SELECT RBOOK.roomNumber FROM RoomBookings RBOOK WHERE RBOOK.hotelID = '%s' AND RBOOK.bookingDate = '%s') AND R.roomNumber NOT IN (SELECT RREP.roomNumber FROM RoomRepairs RREP WHERE RREP.hotelID = '%s' AND RREP.repairDate = '%s') ORDER BY R.roomNumber", date, hotelID, hotelID, date, hotelID, date);
        // To view rooms from a certain hotel, we first select only rooms belonging to that hotel by checking with the hotelID equal to user input. Then, to check the availability of a room, we use a NOT IN in a subquery where it does almost the same thing but in the RoomBookings table (where it stores all the booking information). 
+       // Rooms with a repair scheduled on that date are hidden as well, since they cannot be booked.
+       // The price shown is the dynamic price for that date if the pricing engine has computed one, otherwise the static room price.
  
-       List < List < String >> rooms = esql.executeQueryAndReturnResult(query);
+       // Route to the shard holding the hotel.
+       Hotel shard = esql.shardFor(Integer.parseInt(hotelID));
+ 
+       List < List < String >> rooms = shard.executeQueryAndReturnResult(query);
  
        if (rooms.isEmpty()) {
          System.out.println("\nWe apologize for the inconvenience, but we regret to inform you that we have run out of available rooms for the dates you requested.");
@@ -552,13 +1112,14 @@
          }
        }
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
      }
    }
  
    // FUNCTION X 3
    public static void bookRooms(Hotel esql) {
      try {
+       esql.beginOperation("bookRooms");
        System.out.print("Enter Hotel ID: ");
        String hotelID = in.readLine();
        System.out.print("Enter Room Number: ");
@@ -567,45 +1128,70 @@
        String date = in.readLine();
  
        //SQL
-       String query = String.format("SELECT R.price FROM Rooms R WHERE R.hotelID = '%s' AND R.roomNumber = '%s'", hotelID, roomNumber);
-       List < List < String >> rooms = esql.executeQueryAndReturnResult(query);
-       // The first SQL query retrieves the price for the given hotel room, ensuring the input hotel room actually exists. 
+       String query = String.format("SELECT COALESCE(P.price, R.price) FROM Rooms R LEFT JOIN RoomPrices P ON P.hotelID = R.hotelID AND P.roomNumber = R.roomNumber AND P.priceDate = '%s' WHERE R.hotelID = '%s' AND R.roomNumber = '%s'", date, hotelID, roomNumber);
+       // Route to the shard holding the hotel.
+       Hotel shard = esql.shardFor(Integer.parseInt(hotelID));
+ 
+       List < List < String >> rooms = shard.executeQueryAndReturnResult(query);
+       // The first SQL query retrieves the effective price for the given hotel room on the requested date (dynamic price if computed, static price otherwise), ensuring the input hotel room actually exists. 
  
        if (rooms.isEmpty()) {
          System.out.println("We apologize for the inconvenience, but it looks like you might have input invalid Hotel ID and/or Room Number. Please try again!");
          return;
        }
  
-       //SQL
-       query = String.format("SELECT * FROM RoomBookings RB WHERE RB.hotelID = '%s' AND RB.roomNumber = '%s' AND RB.bookingDate = '%s'", hotelID, roomNumber, date);
-       List < List < String >> bookings = esql.executeQueryAndReturnResult(query);
-       //The second query checks the same room from the RoomsBookings table; if the room exists in this table, it means the room is already booked on the given date.      
- 
-       if (!bookings.isEmpty()) {
-         System.out.println("We apologize for the inconvenience, but the room is already booked on " + date + ".");
-         return;
-       }
- 
        String price = rooms.get(0).get(0);
        System.out.println("Room price: " + price);
  
-       query = String.format("INSERT INTO RoomBookings (bookingID, customerID, hotelID, roomNumber, bookingDate) VALUES (DEFAULT, '%s', '%s', '%s', '%s')", getUserId(), hotelID, roomNumber, date);
-       esql.executeUpdate(query);
-       //Finally, if it reaches this point, it means the given room is available for booking, so we simply insert the corresponding data into RoomBookings.
-       System.out.println("Room booked successfully! If you want to modify the reservation, please call us directly!");
+       BookingAdmission.Outcome outcome;
+       Future < BookingAdmission.Outcome > booking = shard.admission().submit(Integer.parseInt(getUserId()), Integer.parseInt(hotelID), Integer.parseInt(roomNumber), LocalDate.parse(date));
+       int budget = esql.metrics().budgetFor("bookRooms");
+       try {
+         outcome = budget > 0 ? booking.get(budget, TimeUnit.SECONDS) : booking.get();
+       } catch (TimeoutException e) {
+         System.err.println("Your booking could not be confirmed in time. Please check your recent bookings before trying again.");
+         return;
+       }
+       //The booking goes through the admission layer, which checks RoomBookings and inserts the booking in one transaction, serialized with every other request for the same hotel and date.
+       //We wait no longer than the operation's query budget, so a stuck stripe cannot hang the menu; a budget of 0 waits for as long as it takes.
+       switch (outcome) {
+       case BOOKED:
+         System.out.println("Room booked successfully! If you want to modify the reservation, please call us directly!");
+         break;
+       case ROOM_TAKEN:
+         System.out.println("We apologize for the inconvenience, but the room is already booked on " + date + ".");
+         break;
+       case SOLD_OUT:
+         System.out.println("We apologize for the inconvenience, but the hotel is sold out on " + date + ".");
+         break;
+       case UNDER_REPAIR:
+         System.out.println("We apologize for the inconvenience, but the room is under repair on " + date + ".");
+         break;
+       case INVALID_ROOM:
+         System.out.println("We apologize for the inconvenience, but it looks like you might have input invalid Hotel ID and/or Room Number. Please try again!");
+         break;
+       default:
+         // reported on stderr like every other failed operation, so callers and the workload replayer see it
+         System.err.println("We apologize for the inconvenience, but your booking could not be completed. Please try again!");
+         break;
+       }
  
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
      }
    }
  
    // FUNCTION X 4
    public static void viewRecentBookingsfromCustomer(Hotel esql) {
      try {
+       esql.beginOperation("viewRecentBookingsfromCustomer");
        //SQL
        String query = String.format("SELECT bookingID, hotelID, roomNumber, bookingDate, customerID FROM RoomBookings WHERE customerID = '%s' ORDER BY bookingDate DESC LIMIT 5", getUserId());
-       int rowCount = esql.executeQueryAndPrintResult(query); // This would print AT MOST 5 histories 
+       List < List < String >> bookings = esql.executeQueryOnAllShards(query);
+       bookings.sort(Comparator.comparing((List < String > row) -> row.get(3)).reversed());
+       int rowCount = printResult(new String[] { "bookingid", "hotelid", "roomnumber", "bookingdate", "customerid" }, bookings.subList(0, Math.min(5, bookings.size()))); // This would print AT MOST 5 histories 
        //Users can only get info from RoomBookings if the attribute matches their customerID. Order by booking date in descending order, so we get a most recent sort, and limit to 5, so we only see the most recent 5 bookings.
+       //Bookings live on the shard of their hotel, so each shard returns its 5 most recent ones and the overall 5 most recent are picked from those.
  
        if (rowCount == 0) {
          System.out.println("You have no booking history yet."); // In the case where customer has NO bookingHistory
@@ -615,13 +1201,14 @@
          System.out.println("You have reached the end of your booking history."); // This would print at the end of the X history the customer have
        }
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
      }
    }
  
    // FUNCTION X 5
    public static void updateRoomInfo(Hotel esql) {
      try {
+       esql.beginOperation("updateRoomInfo");
        System.out.print("Enter Hotel ID: ");
        String hotelID = in.readLine();
        System.out.print("Enter Room Number: ");
@@ -632,10 +1219,13 @@
          return;
        }
  
+       // Route to the shard holding the hotel.
+       Hotel shard = esql.shardFor(Integer.parseInt(hotelID));
+ 
        // SQL Validate if it does exist in the system.
        String query = String.format("SELECT * FROM Rooms WHERE hotelID = '%s' AND roomNumber = '%s'", hotelID, roomNumber);
        // First, we select the room.
-       List < List < String >> rooms = esql.executeQueryAndReturnResult(query);
+       List < List < String >> rooms = shard.executeQueryAndReturnResult(query);
        if (rooms.isEmpty()) {
          System.out.println("Invalid Hotel ID or Room Number. Please try again!");
          return;
@@ -653,36 +1243,31 @@
  
        //For Price
        String newPrice = in.readLine();
-       if (!newPrice.equals("skip")) {
-         query = String.format("UPDATE Rooms SET price = '%s' WHERE hotelID = '%s' AND roomNumber = '%s'", newPrice, hotelID, roomNumber);
-         esql.executeUpdate(query);
-       }
  
        //For URL
        System.out.print("Enter NEW image URL (enter 'skip' to keep the same): ");
        String newImageURL = in.readLine();
-       if (!newImageURL.equals("skip")) {
-         query = String.format("UPDATE Rooms SET imageURL = '%s' WHERE hotelID = '%s' AND roomNumber = '%s'", newImageURL, hotelID, roomNumber);
-         esql.executeUpdate(query);
-       }
-       // Then, we update the price and URL
  
-       // Log the update in RoomUpdatesLog table with timestamp
-       String temp_time = LocalDateTime.now().toString();
-       query = String.format("INSERT INTO RoomUpdatesLog (managerID, hotelID, roomNumber, updatedOn) VALUES ('%s', '%s', '%s', '%s')", getUserId(), hotelID, roomNumber, temp_time);
-       esql.executeUpdate(query);
-       // After that, we insert it into the log
+       // Then, we update the price and URL and log the update in RoomUpdatesLog table with timestamp, all in one call to update_room_info_v1 (one round trip, one commit)
+       Timestamp updatedOn = shard.callUpdateRoomInfo(Integer.parseInt(getUserId()), Integer.parseInt(hotelID), Integer.parseInt(roomNumber),
+         newPrice.equals("skip") ? null : Integer.valueOf(newPrice), newImageURL.equals("skip") ? null : newImageURL);
+       if (updatedOn == null) {
+         System.out.println("Invalid Hotel ID or Room Number. Please try again!");
+         return;
+       }
+       String temp_time = updatedOn.toLocalDateTime().toString();
  
        System.out.println("Room information updated successfully! Timestamp: " + temp_time + " ");
  
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
      }
    }
  
    // FUNCTION X 6
    public static void viewRecentUpdates(Hotel esql) {
      try {
+       esql.beginOperation("viewRecentUpdates");
        System.out.print("Enter Hotel ID: ");
        String hotelID = in.readLine();
  
@@ -695,20 +1280,24 @@
        String query = String.format("SELECT hotelID, roomNumber, managerID, updatedOn FROM RoomUpdatesLog WHERE hotelID = '%s' ORDER BY updatedOn DESC LIMIT 5", hotelID);
        // Query the top 5 most recent rows from RoomUpdatesLog where the hotel ID matches the current user's access.
  
+       // Route to the shard holding the hotel.
+       Hotel shard = esql.shardFor(Integer.parseInt(hotelID));
+ 
        // Check if it is empty
-       int rowCount = esql.executeQueryAndPrintResult(query);
+       int rowCount = shard.executeQueryAndPrintResult(query);
        if (rowCount == 0) {
          System.out.println("You have no recent updates for hotel with hotelID: " + hotelID + " ");
        }
  
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
      }
    }
  
    // FUNCTION X 7 
    public static void viewBookingHistoryofHotel(Hotel esql) {
      try {
+       esql.beginOperation("viewBookingHistoryofHotel");
        System.out.print("\tEnter Hotel ID: ");
        String input = in.readLine();
        int hotelID = Integer.parseInt(input);
@@ -730,16 +1319,20 @@
        // This print out the thing like a single quote with the date in the Where.
        // Simply get desired data from the RoomBookings table given the hotel ID and use a range to filter out undesired parts.
  
-       esql.executeQueryAndPrintResult(query);
+       // Route to the shard holding the hotel.
+       Hotel shard = esql.shardFor(hotelID);
+ 
+       shard.executeQueryAndPrintResult(query);
  
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
      }
    }
  
    // FUNCTION X 8
    public static void viewRegularCustomers(Hotel esql) {
      try {
+       esql.beginOperation("viewRegularCustomers");
  
        // USER INPUT
        System.out.print("Enter hotel ID: ");
@@ -753,17 +1346,21 @@
        // SQL
        String query = String.format("SELECT U.userID, U.name, COUNT(*) AS num_bookings FROM RoomBookings B, Rooms R, Users U WHERE B.hotelID=%d AND B.roomNumber=R.roomNumber AND R.hotelID=%d AND B.customerID=U.userID AND U.userType='customer' GROUP BY U.userID, U.name ORDER BY num_bookings DESC LIMIT 5;", hotelID, hotelID);
        System.out.println("Top 5 customers who made the most bookings in the hotel:");
-       esql.executeQueryAndPrintResult(query); // FIX ME the output is misaligned: FIXED
+       // Route to the shard holding the hotel.
+       Hotel shard = esql.shardFor(hotelID);
+ 
+       shard.executeQueryAndPrintResult(query); // FIX ME the output is misaligned: FIXED
        //Use the aggregate function COUNT to count how many times a user appears in the table and filter out admin and manager, as they might reserve rooms for other purposes. Group by individual users and return the top 5 rows (sorted from max to min).
  
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
      }
    }
  
    // FUNCTION X 9
    public static void placeRoomRepairRequests(Hotel esql) {
      try {
+       esql.beginOperation("placeRoomRepairRequests");
  
        // USER INPUT
        System.out.print("Enter hotel ID: ");
@@ -783,27 +1380,31 @@
  
        System.out.print("Enter repair date (YYYY-MM-DD): ");
        String repairDate = in.readLine();
+       LocalDate day = LocalDate.parse(repairDate);
  
-       // SQL INSERT
-       String query = String.format("INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) VALUES (%d, %d, %d, '%s')", companyID, hotelID, roomNumber, repairDate);
-       esql.executeUpdate(query);
-       // The first query directly inserts into the RoomRepairs table; it would use a predefined seq and get a repairID upon insertion. 
- 
-       // SQL get repair ID back
-       query = String.format("SELECT repairID FROM RoomRepairs WHERE companyID = %d AND hotelID = %d AND roomNumber = %d AND repairDate = '%s'", companyID, hotelID, roomNumber, repairDate);
-       List < List < String >> result = esql.executeQueryAndReturnResult(query);
-       int repairID = Integer.parseInt(result.get(0).get(0));
-       // We then retrieve that value using the second query. 
+       // Route to the shard holding the hotel.
+       Hotel shard = esql.shardFor(hotelID);
  
-       // SQL INSERT to RoomRepairRequests
-       query = String.format("INSERT INTO RoomRepairRequests (managerID, repairID) VALUES (%s, %d)", getUserId(), repairID);
-       esql.executeUpdate(query);
-       // After that, we insert the repairID and managerID into the RoomRepairRequests table.
+       // One call to place_room_repair_request_v1 takes the same (hotelID, date) lock as the booking admission layer, rejects dates on which the room is booked or already under repair, inserts into RoomRepairs and records the request in RoomRepairRequests, with a single commit.
+       RoomCalendar.Conflict conflict = shard.callPlaceRoomRepairRequest(Integer.parseInt(getUserId()), companyID, hotelID, roomNumber, day);
  
-       System.out.println("Room repair request placed successfully.");
+       switch (conflict) {
+       case NONE:
+         System.out.println("Room repair request placed successfully.");
+         break;
+       case BOOKED:
+         System.out.println("The room is booked by a customer on " + repairDate + ". Please choose another date (see option 17 for suggestions).");
+         break;
+       case UNDER_REPAIR:
+         System.out.println("A repair is already scheduled for this room on " + repairDate + ".");
+         break;
+       default:
+         System.out.println("Invalid Hotel ID or Room Number. Please try again!");
+         break;
+       }
  
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
      }
    }
  
@@ -811,6 +1412,7 @@
    // Check all the history of a given room repair.
    public static void viewRoomRepairHistory(Hotel esql) {
      try {
+       esql.beginOperation("viewRoomRepairHistory");
        // USER INPUT
        System.out.print("Enter hotel ID: ");
        int hotelID = Integer.parseInt(in.readLine());
@@ -829,12 +1431,15 @@
        // Simply select what's in both RoomRepairs tables with the matching repairID in RoomRepairRequests.
  
        System.out.println("\nRoom repair history for the given inputs:\n");
-       int rowCount = esql.executeQueryAndPrintResult(query);
+       // Route to the shard holding the hotel.
+       Hotel shard = esql.shardFor(hotelID);
+ 
+       int rowCount = shard.executeQueryAndPrintResult(query);
        if (rowCount == 0) {
          System.out.println("No repair history found for the given inputs.");
        }
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
      }
    }
  
@@ -842,6 +1447,7 @@
    // FUNCTION X 11.
    public static void viewAllRoomRepairHistory(Hotel esql) {
      try {
+       esql.beginOperation("viewAllRoomRepairHistory");
  
        // USER INPUT
        System.out.print("Enter hotel ID: ");
@@ -856,12 +1462,197 @@
        String query = String.format("SELECT R.companyID, R.hotelID, R.roomNumber, R.repairDate FROM RoomRepairs R, RoomRepairRequests RR WHERE R.repairID = RR.repairID AND R.hotelID = %d ORDER BY R.roomNumber, R.repairDate", hotelID);
        // Simply select what's in both RoomRepairs tables with the matching repairID in RoomRepairRequests, without checking the room number and specific date.
        System.out.println("\nAll room repair history for the given hotel:\n");
-       int rowCount = esql.executeQueryAndPrintResult(query);
+       // Route to the shard holding the hotel.
+       Hotel shard = esql.shardFor(hotelID);
+ 
+       int rowCount = shard.executeQueryAndPrintResult(query);
        if (rowCount == 0) {
          System.out.println("No repair history found for the given hotel.");
        }
      } catch (Exception e) {
-       System.err.println(e.getMessage());
+       System.err.println(QueryGuard.describe(e));
+     }
+   }
+ 
+   // FUNCTION X 12
+   // Recompute demand-based prices for every room of every hotel over a range of dates.
+   public static void runDynamicPricing(Hotel esql) {
+     try {
+       esql.beginOperation("runDynamicPricing");
+ 
+       // Pricing spans every hotel, so only admins may run it.
+       if (!validateAdmin(esql)) {
+         return;
+       }
+ 
+       // USER INPUT
+       System.out.print("Enter starting date (YYYY-MM-DD): ");
+       LocalDate startDate = LocalDate.parse(in.readLine());
+       System.out.print("Enter number of days to price: ");
+       int days = Integer.parseInt(in.readLine());
+ 
+       long begin = System.currentTimeMillis();
+       int written = 0;
+       for (Hotel shard: esql.allShards()) {
+         written += new PricingEngine(shard).reprice(getUserId(), startDate, days);
+       }
+       // The engine writes all prices with one set-based statement per bucket of hotels and logs a single PricingRuns entry (per shard).
+ 
+       System.out.println("Dynamic pricing finished: " + written + " room prices written in " + (System.currentTimeMillis() - begin) + " ms.");
+ 
+     } catch (Exception e) {
+       System.err.println(QueryGuard.describe(e));
+     }
+   }
+ 
+   // FUNCTION X 14
+   // Case-insensitive prefix and fuzzy search on hotel names, backed by the trigram index on Hotel.
+   public static void searchHotels(Hotel esql) {
+     try {
+       esql.beginOperation("searchHotels");
+ 
+       // USER INPUT
+       System.out.print("Enter hotel name (or its beginning): ");
+       String term = in.readLine();
+       if (term.trim().isEmpty()) {
+         System.out.println("Please enter at least one character.");
+         return;
+       }
+ 
+       //SQL
+       String query = nameSearchQuery("hotelID, hotelName", "Hotel", "hotelName", "", term);
+       // Rows whose name starts with the term rank first, then names that are merely similar (typos), each ordered by trigram similarity.
+ 
+       final String prefix = term.trim().toLowerCase();
+       List < List < String >> hotels = esql.executeQueryOnAllShards(query);
+       hotels.sort(Comparator.comparing((List < String > row) -> !row.get(1).trim().toLowerCase().startsWith(prefix)).thenComparing(row -> -Double.parseDouble(row.get(2))));
+       int rowCount = printResult(new String[] { "hotelid", "hotelname", "score" }, hotels.subList(0, Math.min(10, hotels.size())));
+       // Each shard returns its 10 best matches and the same ranking is applied again to merge them.
+       if (rowCount == 0) {
+         System.out.println("No hotels found matching \"" + term.trim() + "\".");
+       }
+     } catch (Exception e) {
+       System.err.println(QueryGuard.describe(e));
+     }
+   }
+ 
+   // FUNCTION X 15
+   // Case-insensitive prefix and fuzzy search on customer names, backed by the trigram index on Users. Only staff may look up customers.
+   public static void searchCustomers(Hotel esql) {
+     try {
+       esql.beginOperation("searchCustomers");
+ 
+       if (!validateStaff(esql)) {
+         return;
+       }
+ 
+       // USER INPUT
+       System.out.print("Enter customer name (or its beginning): ");
+       String term = in.readLine();
+       if (term.trim().isEmpty()) {
+         System.out.println("Please enter at least one character.");
+         return;
+       }
+ 
+       //SQL
+       String query = nameSearchQuery("userID, name", "Users", "name", "lower(rtrim(userType)) = 'customer' AND ", term);
+       // Same ranking as the hotel search, restricted to customers.
+ 
+       int rowCount = esql.executeQueryAndPrintResult(query);
+       if (rowCount == 0) {
+         System.out.println("No customers found matching \"" + term.trim() + "\".");
+       }
+     } catch (Exception e) {
+       System.err.println(QueryGuard.describe(e));
+     }
+   }
+ 
+   // FUNCTION X 16
+   // Export the booking and repair history of every hotel the user manages (every hotel for admins) to compressed CSV files.
+   public static void exportHistory(Hotel esql) {
+     try {
+       esql.beginOperation("exportHistory");
+ 
+       //SQL
+       String query = String.format("SELECT H.hotelID FROM Hotel H, Users U WHERE U.userID = %s AND (H.managerUserID = U.userID OR lower(rtrim(U.userType)) = 'admin') ORDER BY H.hotelID", getUserId());
+       // Managers get the hotels of their chain, admins get every hotel, customers get nothing. Each shard exports its own hotels.
+       Map < Hotel, List < Integer >> hotelIDs = new HashMap < Hotel, List < Integer >> ();
+       int hotelCount = 0;
+       for (Hotel shard: esql.allShards()) {
+         List < Integer > ids = new ArrayList < Integer > ();
+         for (List < String > row: shard.executeQueryAndReturnResult(query)) {
+           ids.add(Integer.parseInt(row.get(0)));
+         }
+         hotelIDs.put(shard, ids);
+         hotelCount += ids.size();
+       }
+       if (hotelCount == 0) {
+         System.out.println("You are not authorized to export the history of any hotel.");
+         return;
+       }
+ 
+       // USER INPUT
+       System.out.print("\tEnter starting date (YYYY-MM-DD): ");
+       LocalDate from = LocalDate.parse(in.readLine());
+       System.out.print("\tEnter ending date (YYYY-MM-DD): ");
+       LocalDate to = LocalDate.parse(in.readLine());
+       System.out.print("\tEnter output directory: ");
+       String dir = in.readLine();
+ 
+       long begin = System.currentTimeMillis();
+       long rows = 0;
+       for (Map.Entry < Hotel, List < Integer >> entry: hotelIDs.entrySet()) {
+         if (!entry.getValue().isEmpty()) {
+           rows += new HistoryExporter(entry.getKey()).export(entry.getValue(), from, to, Paths.get(dir));
+         }
+       }
+       // One bookings and one repairs file per hotel, streamed in parallel with constant memory.
+       System.out.println("Exported " + rows + " rows for " + hotelCount + " hotel(s) to " + dir + " in " + (System.currentTimeMillis() - begin) + " ms.");
+ 
+     } catch (Exception e) {
+       System.err.println(QueryGuard.describe(e));
+     }
+   }
+ 
+   // FUNCTION X 17
+   // Suggest the next N conflict-free repair dates for every room of a hotel, computed in bulk from the room calendar.
+   public static void suggestRepairDates(Hotel esql) {
+     try {
+       esql.beginOperation("suggestRepairDates");
+ 
+       // USER INPUT
+       System.out.print("Enter hotel ID: ");
+       int hotelID = Integer.parseInt(in.readLine());
+ 
+       // Calling Helper Function to Check if the "user" is authorized for this higher level action.
+       if (!validateManager(esql, hotelID)) {
+         return;
+       }
+ 
+       // USER INPUT
+       System.out.print("Enter earliest repair date (YYYY-MM-DD): ");
+       LocalDate from = LocalDate.parse(in.readLine());
+       System.out.print("Enter number of dates per room: ");
+       int count = Integer.parseInt(in.readLine());
+       if (count <= 0) {
+         System.err.println("Number of dates per room must be positive. Please try again!");
+         return;
+       }
+ 
+       // Route to the shard holding the hotel.
+       Hotel shard = esql.shardFor(hotelID);
+ 
+       // One load covers a year of bookings and repairs for the whole hotel; the suggestions are then bitmap scans.
+       Map < Integer, List < LocalDate >> suggestions = RoomCalendar.load(shard, hotelID, from, 366).suggestRepairDates(count);
+       if (suggestions.isEmpty()) {
+         System.out.println("The hotel has no rooms.");
+         return;
+       }
+       for (Map.Entry < Integer, List < LocalDate >> entry: suggestions.entrySet()) {
+         System.out.printf("Room Number: %s, Free dates: %s\n", entry.getKey(), entry.getValue());
+       }
+     } catch (Exception e) {
+       System.err.println(QueryGuard.describe(e));
      }
    }
  
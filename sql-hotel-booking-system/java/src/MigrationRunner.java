@@ -0,0 +1,134 @@
+/*
+ * Migration Runner
+ * =============================
+ *
+ * Installs and upgrades the server-side functions in sql/migrations.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Migrations are files named V<version>__<name>.sql. They are applied in
+ * version order, each in its own transaction, and recorded in the
+ * SchemaMigrations table with a checksum of their content, so running the
+ * tool again only applies the new ones. A recorded migration whose file has
+ * changed since is reported and left alone: fixes go in a new migration.
+ *
+ * Usage: java MigrationRunner <dbname> <port> <user> <migrations dir>
+ * With -Dhotel.shards=<file> every shard of the map is migrated instead.
+ */
+public class MigrationRunner {
+
+  static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 4) {
+      System.err.println("Usage: java [-classpath <classpath>] " + MigrationRunner.class.getName() + " <dbname> <port> <user> <migrations dir>");
+      return;
+    }
+    Class.forName("org.postgresql.Driver");
+    Hotel esql = new Hotel(args[0], args[1], args[2], "");
+    try {
+      String shardFile = System.getProperty("hotel.shards");
+      if (shardFile != null) {
+        esql.attachShards(ShardMap.load(shardFile));
+      }
+      for (Hotel shard: esql.allShards()) {
+        migrate(shard, new File(args[3]));
+      }
+    } finally {
+      esql.cleanup();
+    }
+  }
+
+  /**
+   * Applies the migrations of the directory that the database does not have yet.
+   *
+   * @return the number of migrations applied
+   */
+  public static int migrate(Hotel esql, File dir) throws Exception {
+    TreeMap < Integer, File > migrations = new TreeMap < Integer, File > ();
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IllegalArgumentException("Not a directory: " + dir);
+    }
+    for (File file: files) {
+      Matcher m = FILE_NAME.matcher(file.getName());
+      if (m.matches()) {
+        migrations.put(Integer.parseInt(m.group(1)), file);
+      }
+    }
+
+    Connection conn = esql.openConnection();
+    try {
+      Statement stmt = conn.createStatement();
+      stmt.executeUpdate("CREATE TABLE IF NOT EXISTS SchemaMigrations (version integer PRIMARY KEY, name text NOT NULL, checksum char(64) NOT NULL, appliedOn timestamp NOT NULL)");
+      Map < Integer, String > applied = new HashMap < Integer, String > ();
+      ResultSet rs = stmt.executeQuery("SELECT version, checksum FROM SchemaMigrations");
+      while (rs.next()) {
+        applied.put(rs.getInt(1), rs.getString(2).trim());
+      }
+      rs.close();
+      stmt.close();
+
+      int count = 0;
+      conn.setAutoCommit(false);
+      for (Map.Entry < Integer, File > entry: migrations.entrySet()) {
+        String sql = new String(Files.readAllBytes(entry.getValue().toPath()), StandardCharsets.UTF_8);
+        String checksum = sha256(sql);
+        String recorded = applied.get(entry.getKey());
+        if (recorded != null) {
+          if (!recorded.equals(checksum)) {
+            System.err.println("Warning: " + entry.getValue().getName() + " changed after it was applied; add a new migration instead.");
+          }
+          continue;
+        }
+        try {
+          Statement migration = conn.createStatement();
+          migration.execute(sql);
+          migration.close();
+          PreparedStatement record = conn.prepareStatement("INSERT INTO SchemaMigrations (version, name, checksum, appliedOn) VALUES (?, ?, ?, localtimestamp)");
+          record.setInt(1, entry.getKey());
+          record.setString(2, entry.getValue().getName());
+          record.setString(3, checksum);
+          record.executeUpdate();
+          record.close();
+          conn.commit();
+        } catch (SQLException e) {
+          conn.rollback();
+          throw new SQLException("Migration " + entry.getValue().getName() + " failed: " + e.getMessage(), e.getSQLState(), e);
+        }
+        System.out.println("Applied " + entry.getValue().getName());
+        count++;
+      }
+      System.out.println("Schema is at version " + (migrations.isEmpty() ? 0 : migrations.lastKey()) + " (" + count + " migration(s) applied).");
+      return count;
+    } finally {
+      conn.close();
+    }
+  }
+
+  static String sha256(String text) throws Exception {
+    StringBuilder hex = new StringBuilder();
+    for (byte b: MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8))) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
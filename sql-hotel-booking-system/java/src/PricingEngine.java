@@ -0,0 +1,141 @@
+/*
+ * Dynamic Pricing Engine
+ * =============================
+ *
+ * Computes demand-based room prices per hotel, room and date from the
+ * booking density in RoomBookings and stores them in RoomPrices.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reprices every room for a range of dates. Hotels are split into buckets by
+ * hotelID and each bucket is repriced by one set-based INSERT ... SELECT on its
+ * own connection, so the buckets run in parallel and no row is sent through
+ * Java. A single PricingRuns row summarizes the whole run.
+ *
+ * The price of a room on a date is its static price in Rooms scaled by the
+ * occupancy of its hotel on that date:
+ *
+ *   surge = 1 + SURGE * bookedRooms / totalRooms
+ *   price = ceil(base * surge)
+ *
+ * The surge factor is stored next to the price, so the rescale_room_prices
+ * trigger can recompute the price exactly when the base price changes.
+ */
+public class PricingEngine {
+
+  // extra fraction of the base price charged when a hotel is fully booked
+  public static final double SURGE = 0.5;
+
+  // default number of parallel buckets (one connection each)
+  public static final int DEFAULT_WORKERS = 4;
+
+  private final Hotel esql;
+  private final int workers;
+
+  public PricingEngine(Hotel esql, int workers) {
+    this.esql = esql;
+    this.workers = Math.max(1, workers);
+  }
+
+  public PricingEngine(Hotel esql) {
+    this(esql, DEFAULT_WORKERS);
+  }
+
+  /**
+   * Reprices all rooms of all hotels from startDate for the given number of
+   * days and logs the run.
+   *
+   * @param managerID the user running the engine, recorded in PricingRuns
+   * @param startDate the first date to price
+   * @param days the number of dates to price
+   * @return the number of room prices written
+   * @throws java.lang.Exception when a bucket fails
+   */
+  public int reprice(String managerID, LocalDate startDate, int days) throws Exception {
+    if (days <= 0) {
+      throw new IllegalArgumentException("Number of days must be positive.");
+    }
+    LocalDateTime startedOn = LocalDateTime.now();
+    LocalDate endDate = startDate.plusDays(days - 1);
+
+    ExecutorService pool = Executors.newFixedThreadPool(this.workers);
+    int written = 0;
+    try {
+      List < Future < Integer >> parts = new ArrayList < Future < Integer >> ();
+      for (int bucket = 0; bucket < this.workers; bucket++) {
+        parts.add(pool.submit(new BucketTask(bucket, startDate, endDate)));
+      }
+      for (Future < Integer > part: parts) {
+        written += part.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    String query = String.format("INSERT INTO PricingRuns (managerID, startDate, days, pricesWritten, startedOn, finishedOn) VALUES (%s, '%s', %d, %d, '%s', '%s')", managerID, startDate, days, written, startedOn, LocalDateTime.now());
+    this.esql.executeUpdate(query);
+    return written;
+  }
+
+  /**
+   * Builds the set-based upsert for one bucket of hotels. Booking density is
+   * aggregated once per (hotelID, bookingDate) and joined to every room of the
+   * hotel for every date in the range.
+   */
+  String bucketQuery(int bucket, LocalDate startDate, LocalDate endDate) {
+    return String.format(
+      "INSERT INTO RoomPrices (hotelID, roomNumber, priceDate, surge, price) " +
+      "SELECT R.hotelID, R.roomNumber, D.day::date, S.surge, CEIL(R.price * S.surge) " +
+      "FROM Rooms R " +
+      "JOIN (SELECT hotelID, COUNT(*) AS total FROM Rooms WHERE hotelID %% %d = %d GROUP BY hotelID) C ON C.hotelID = R.hotelID " +
+      "CROSS JOIN generate_series('%s'::date, '%s'::date, interval '1 day') D(day) " +
+      "LEFT JOIN (SELECT hotelID, bookingDate, COUNT(DISTINCT roomNumber) AS booked FROM RoomBookings WHERE hotelID %% %d = %d AND bookingDate BETWEEN '%s' AND '%s' GROUP BY hotelID, bookingDate) B " +
+      "ON B.hotelID = R.hotelID AND B.bookingDate = D.day::date " +
+      "CROSS JOIN LATERAL (SELECT 1 + %s * COALESCE(B.booked, 0)::decimal / C.total AS surge) S " +
+      "WHERE R.hotelID %% %d = %d " +
+      "ON CONFLICT (hotelID, roomNumber, priceDate) DO UPDATE SET surge = EXCLUDED.surge, price = EXCLUDED.price",
+      this.workers, bucket, startDate, endDate, this.workers, bucket, startDate, endDate, SURGE, this.workers, bucket);
+  }
+
+  // Reprices one bucket of hotels in a single statement on a dedicated connection.
+  private class BucketTask implements Callable < Integer > {
+    private final int bucket;
+    private final LocalDate startDate;
+    private final LocalDate endDate;
+
+    BucketTask(int bucket, LocalDate startDate, LocalDate endDate) {
+      this.bucket = bucket;
+      this.startDate = startDate;
+      this.endDate = endDate;
+    }
+
+    public Integer call() throws SQLException {
+      Connection conn = esql.openConnection();
+      try {
+        Statement stmt = conn.createStatement();
+        try {
+          return stmt.executeUpdate(bucketQuery(this.bucket, this.startDate, this.endDate));
+        } finally {
+          stmt.close();
+        }
+      } finally {
+        conn.close();
+      }
+    }
+  }
+}
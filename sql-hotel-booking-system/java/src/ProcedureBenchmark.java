@@ -0,0 +1,120 @@
+/*
+ * Procedure Benchmark
+ * =============================
+ *
+ * Compares the multi-statement client-side versions of updateRoomInfo and
+ * placeRoomRepairRequests against the server-side functions installed by
+ * MigrationRunner.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Runs each operation a number of times on one room through both paths and
+ * reports the mean latency and the number of round trips per operation
+ * (statements sent plus the commit). Everything the runs write is removed
+ * afterwards and the room gets its original price, image and demand-based
+ * prices back.
+ *
+ * Usage: java ProcedureBenchmark <dbname> <port> <user> [iterations]
+ */
+public class ProcedureBenchmark {
+
+  // repairs are scheduled far in the future so they do not collide with the loaded data
+  static final LocalDate FIRST_DATE = LocalDate.of(2031, 1, 1);
+
+  // One benchmarked operation; i is the iteration number.
+  interface Operation {
+    void run(int i) throws Exception;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("Usage: java [-classpath <classpath>] " + ProcedureBenchmark.class.getName() + " <dbname> <port> <user> [iterations]");
+      return;
+    }
+    final int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+    Class.forName("org.postgresql.Driver");
+    final Hotel esql = new Hotel(args[0], args[1], args[2], "");
+    esql.beginOperation("benchmark");
+    try {
+      List < String > room = esql.executeQueryAndReturnResult("SELECT R.hotelID, R.roomNumber, R.price, R.imageURL, H.managerUserID, (SELECT MIN(companyID) FROM MaintenanceCompany) FROM Rooms R, Hotel H WHERE R.hotelID = H.hotelID ORDER BY R.hotelID, R.roomNumber LIMIT 1").get(0);
+      final int hotelID = Integer.parseInt(room.get(0));
+      final int roomNumber = Integer.parseInt(room.get(1));
+      final String price = room.get(2);
+      final String imageURL = room.get(3).trim();
+      final int managerID = Integer.parseInt(room.get(4));
+      final int companyID = Integer.parseInt(room.get(5));
+      String lastRepair = esql.executeQueryAndReturnResult("SELECT COALESCE(MAX(repairID), 0) FROM RoomRepairs").get(0).get(0);
+      String lastUpdate = esql.executeQueryAndReturnResult("SELECT COALESCE(MAX(updateNumber), 0) FROM RoomUpdatesLog").get(0).get(0);
+      // price changes rescale the room's demand-based prices, keep them to put them back afterwards
+      esql.executeUpdate(String.format("CREATE TEMP TABLE BenchPrices AS SELECT * FROM RoomPrices WHERE hotelID = %d AND roomNumber = %d", hotelID, roomNumber));
+
+      try {
+        run("updateRoomInfo", "client", esql, iterations, 1, new Operation() {
+          public void run(final int i) throws Exception {
+            esql.executeTransaction(tx -> {
+              tx.executeUpdate(String.format("UPDATE Rooms SET price = %d WHERE hotelID = %d AND roomNumber = %d", 1000 + i, hotelID, roomNumber));
+              tx.executeUpdate(String.format("UPDATE Rooms SET imageURL = '%s' WHERE hotelID = %d AND roomNumber = %d", "bench" + i, hotelID, roomNumber));
+              tx.executeUpdate(String.format("INSERT INTO RoomUpdatesLog (managerID, hotelID, roomNumber, updatedOn) VALUES (%d, %d, %d, localtimestamp)", managerID, hotelID, roomNumber));
+              return null;
+            });
+          }
+        });
+        run("updateRoomInfo", "function", esql, iterations, 0, new Operation() {
+          public void run(int i) throws Exception {
+            esql.callUpdateRoomInfo(managerID, hotelID, roomNumber, 1000 + i, "bench" + i);
+          }
+        });
+
+        run("placeRoomRepairRequests", "client", esql, iterations, 1, new Operation() {
+          public void run(int i) throws Exception {
+            final LocalDate day = FIRST_DATE.plusDays(i);
+            esql.executeTransaction(tx -> {
+              tx.executeQuery(String.format("SELECT pg_advisory_xact_lock(%d, %d)", hotelID, day.toEpochDay()));
+              if (RoomCalendar.check(tx, hotelID, roomNumber, day) != RoomCalendar.Conflict.NONE) {
+                return null;
+              }
+              tx.executeUpdate(String.format("INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) VALUES (%d, %d, %d, '%s')", companyID, hotelID, roomNumber, day));
+              int repairID = tx.getCurrSeqVal("roomrepairs_repairid_seq");
+              tx.executeUpdate(String.format("INSERT INTO RoomRepairRequests (managerID, repairID) VALUES (%d, %d)", managerID, repairID));
+              return null;
+            });
+          }
+        });
+        run("placeRoomRepairRequests", "function", esql, iterations, 0, new Operation() {
+          public void run(int i) throws Exception {
+            esql.callPlaceRoomRepairRequest(managerID, companyID, hotelID, roomNumber, FIRST_DATE.plusDays(iterations + i));
+          }
+        });
+      } finally {
+        esql.executeUpdate("DELETE FROM RoomRepairRequests WHERE repairID > " + lastRepair);
+        esql.executeUpdate("DELETE FROM RoomRepairs WHERE repairID > " + lastRepair);
+        esql.executeUpdate("DELETE FROM RoomUpdatesLog WHERE updateNumber > " + lastUpdate);
+        esql.executeUpdate(String.format("UPDATE Rooms SET price = %s, imageURL = '%s' WHERE hotelID = %d AND roomNumber = %d", price, imageURL, hotelID, roomNumber));
+        esql.executeUpdate(String.format("DELETE FROM RoomPrices WHERE hotelID = %d AND roomNumber = %d", hotelID, roomNumber));
+        esql.executeUpdate("INSERT INTO RoomPrices SELECT * FROM BenchPrices");
+        esql.executeUpdate("DROP TABLE BenchPrices");
+      }
+    } finally {
+      esql.cleanup();
+    }
+  }
+
+  // commits is the number of explicit commits per operation (0 when the call runs in autocommit)
+  static void run(String operation, String path, Hotel esql, int iterations, int commits, Operation op) throws Exception {
+    long statements = esql.metrics().statements.get();
+    long begin = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      op.run(i);
+    }
+    long elapsed = System.nanoTime() - begin;
+    double roundTrips = (double) (esql.metrics().statements.get() - statements) / iterations + commits;
+    System.out.printf("%-25s %-9s iterations=%d mean=%.3f ms roundTrips/op=%.1f\n", operation, path, iterations, elapsed / 1e6 / iterations, roundTrips);
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Query Guard
+ * =============================
+ *
+ * Timeout budgets, server-side statement timeouts and retry policy used by
+ * the Hotel execute methods and the booking admission layer.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every statement gets a timeout budget chosen by the menu operation it runs
+ * for. The server enforces it: limit sets the session's statement_timeout
+ * whenever the operation changes, so a statement running past its budget is
+ * aborted by Postgres itself. Statement.setQueryTimeout and a watchdog calling
+ * Statement.cancel() are only a fallback for drivers that implement them; the
+ * bundled JDBC3 driver ignores the former and does not support the latter.
+ *
+ * Budgets can be overridden per operation with a system property, e.g.
+ * -Dhotel.timeout.viewAllRoomRepairHistory=120 (seconds, 0 disables it).
+ *
+ * Transactional writes that fail with a serialization failure (40001) or a
+ * deadlock (40P01) are retried with exponential backoff and jitter. The
+ * bundled JDBC3 driver never sets an SQLSTATE, so failures are also
+ * recognized by the server's message text.
+ */
+public class QueryGuard {
+
+  public static final int DEFAULT_TIMEOUT_SECONDS = 10;
+  public static final int MAX_RETRIES = 5;
+  static final long BASE_BACKOFF_MILLIS = 50;
+  static final long MAX_BACKOFF_MILLIS = 2000;
+
+  // Postgres SQLSTATEs
+  static final String QUERY_CANCELED = "57014";
+  static final String SERIALIZATION_FAILURE = "40001";
+  static final String DEADLOCK_DETECTED = "40P01";
+  // the server's messages for them, for drivers that leave the SQLSTATE unset
+  static final String QUERY_CANCELED_MESSAGE = "canceling statement";
+  static final String SERIALIZATION_FAILURE_MESSAGE = "could not serialize access";
+  static final String DEADLOCK_DETECTED_MESSAGE = "deadlock detected";
+
+  // Budgets of the operations that are expected to take longer than the default.
+  private static final Map < String, Integer > BUDGETS = new HashMap < String, Integer > ();
+  static {
+    BUDGETS.put("viewBookingHistoryofHotel", 60);
+    BUDGETS.put("viewRegularCustomers", 30);
+    BUDGETS.put("viewAllRoomRepairHistory", 60);
+  }
+
+  private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "query-watchdog");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  private final Random jitter = new Random();
+
+  // counters exposed through the menu
+  final AtomicLong statements = new AtomicLong();
+  final AtomicLong timeouts = new AtomicLong();
+  final AtomicLong retries = new AtomicLong();
+  final AtomicLong failures = new AtomicLong();
+
+  /**
+   * @param operation the menu operation name, e.g. "browseHotels"
+   * @return the timeout budget in seconds, 0 for no timeout
+   */
+  public int budgetFor(String operation) {
+    Integer budget = BUDGETS.get(operation);
+    return Integer.getInteger("hotel.timeout." + operation, budget == null ? DEFAULT_TIMEOUT_SECONDS : budget);
+  }
+
+  /**
+   * Sets the session's statement_timeout to the budget. The connection must
+   * be in autocommit mode, or the setting is undone if the transaction rolls
+   * back.
+   *
+   * @param seconds the budget, 0 for no timeout
+   */
+  public static void limit(Connection conn, int seconds) throws SQLException {
+    Statement stmt = conn.createStatement();
+    try {
+      stmt.executeUpdate("SET statement_timeout = " + Math.max(0, seconds) * 1000);
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Applies the budget to a statement and arms the watchdog that cancels it
+   * once the budget is spent. The returned watch must be disarmed when the
+   * statement is done.
+   */
+  public Watch watch(final Statement stmt, int seconds) {
+    this.statements.incrementAndGet();
+    final Watch watch = new Watch(seconds);
+    if (seconds > 0) {
+      try {
+        stmt.setQueryTimeout(seconds);
+      } catch (SQLException e) {
+        // driver without timeout support, statement_timeout still applies
+      }
+      watch.task = WATCHDOG.schedule(new Runnable() {
+        public void run() {
+          watch.fired.set(true);
+          try {
+            stmt.cancel();
+          } catch (SQLException e) {
+            // ignored, the statement may already be closed.
+          }
+        }
+      }, seconds, TimeUnit.SECONDS);
+    }
+    return watch;
+  }
+
+  /**
+   * Records a failed statement and turns cancellations caused by its budget
+   * into an SQLTimeoutException naming the budget.
+   */
+  public SQLException failed(SQLException e, Watch watch) {
+    if (watch.fired.get() || matches(e, QUERY_CANCELED, QUERY_CANCELED_MESSAGE)) {
+      this.timeouts.incrementAndGet();
+      return new SQLTimeoutException("Query cancelled after exceeding its " + watch.seconds + " s budget.", QUERY_CANCELED, e);
+    }
+    this.failures.incrementAndGet();
+    return e;
+  }
+
+  public static boolean isRetryable(SQLException e) {
+    return matches(e, SERIALIZATION_FAILURE, SERIALIZATION_FAILURE_MESSAGE) || matches(e, DEADLOCK_DETECTED, DEADLOCK_DETECTED_MESSAGE);
+  }
+
+  // Whether the exception, or one chained to it, has the SQLSTATE or the server message.
+  static boolean matches(SQLException e, String state, String message) {
+    for (SQLException x = e; x != null; x = x.getNextException()) {
+      if (state.equals(x.getSQLState()) || (x.getMessage() != null && x.getMessage().contains(message))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Turns the failure of a menu operation into the message shown to the user.
+   */
+  public static String describe(Exception e) {
+    if (e instanceof SQLTimeoutException) {
+      return e.getMessage() + " Please try again later or narrow the request.";
+    }
+    if (e instanceof SQLException && isRetryable((SQLException) e)) {
+      return "The database was too busy to complete the request, even after " + MAX_RETRIES + " retries. Please try again.";
+    }
+    if (e instanceof SQLException) {
+      return "The request failed in the database: " + e.getMessage();
+    }
+    if (e instanceof NumberFormatException || e instanceof DateTimeParseException) {
+      return "Invalid input: " + e.getMessage();
+    }
+    return "The request failed: " + (e.getMessage() == null ? e.toString() : e.getMessage());
+  }
+
+  /**
+   * Sleeps before the given retry attempt (1-based): exponential backoff
+   * capped at MAX_BACKOFF_MILLIS, with up to 50% random jitter.
+   */
+  public void backoff(int attempt) throws InterruptedException {
+    this.retries.incrementAndGet();
+    long delay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+    Thread.sleep(delay / 2 + (long) (this.jitter.nextDouble() * delay / 2));
+  }
+
+  public String toString() {
+    return String.format("statements=%d timeouts=%d retries=%d failures=%d", this.statements.get(), this.timeouts.get(), this.retries.get(), this.failures.get());
+  }
+
+  // A statement's armed timeout. An unarmed watch just names the budget of work limited by statement_timeout alone.
+  public static final class Watch {
+    final int seconds;
+    final AtomicBoolean fired = new AtomicBoolean();
+    ScheduledFuture < ? > task = null;
+
+    Watch(int seconds) {
+      this.seconds = seconds;
+    }
+
+    public void disarm() {
+      if (this.task != null) {
+        this.task.cancel(false);
+      }
+    }
+  }
+}
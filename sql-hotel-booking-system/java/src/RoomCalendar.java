@@ -0,0 +1,131 @@
+/*
+ * Room Calendar
+ * =============================
+ *
+ * Per-room bitmaps of booked and under-repair days for one hotel and a range
+ * of dates, used to detect repair conflicts and to suggest repair dates.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The calendar is loaded with three index-backed queries (the hotel's rooms,
+ * its bookings in the range and its repairs in the range), after which every
+ * lookup is a bit test: bit i of a room's bitmap stands for day from + i.
+ * Finding the next free days of a room is a scan for clear bits in the union
+ * of its booked and repair bitmaps.
+ *
+ * Loading pays off for bulk lookups such as suggestRepairDates. A single
+ * repair request is checked with one EXISTS-based query instead (check, and
+ * place_room_repair_request_v1 on the server), which touches only the room
+ * and day in question rather than every room of the hotel.
+ */
+public class RoomCalendar {
+
+  public enum Conflict {
+    NONE,         // the room is free that day
+    BOOKED,       // a customer has booked the room that day
+    UNDER_REPAIR, // a repair is already scheduled that day
+    NO_SUCH_ROOM  // the hotel has no such room
+  }
+
+  private final int hotelID;
+  private final LocalDate from;
+  private final int days;
+  // roomNumber -> booked days, for every room of the hotel
+  private final Map < Integer, BitSet > booked = new TreeMap < Integer, BitSet > ();
+  // roomNumber -> days with a scheduled repair
+  private final Map < Integer, BitSet > repairs = new TreeMap < Integer, BitSet > ();
+
+  private RoomCalendar(int hotelID, LocalDate from, int days) {
+    this.hotelID = hotelID;
+    this.from = from;
+    this.days = days;
+  }
+
+  /**
+   * Loads the calendar of a hotel for the given number of days.
+   *
+   * @param esql the connection to read through, so the load can be part of a transaction
+   * @param hotelID the hotel
+   * @param from the first day covered
+   * @param days the number of days covered
+   * @return the calendar
+   * @throws java.sql.SQLException when failed to execute the queries
+   */
+  public static RoomCalendar load(Hotel esql, int hotelID, LocalDate from, int days) throws SQLException {
+    RoomCalendar calendar = new RoomCalendar(hotelID, from, days);
+    LocalDate to = from.plusDays(days - 1);
+    for (List < String > row: esql.executeQueryAndReturnResult(String.format("SELECT roomNumber FROM Rooms WHERE hotelID = %d", hotelID))) {
+      int roomNumber = Integer.parseInt(row.get(0));
+      calendar.booked.put(roomNumber, new BitSet(days));
+      calendar.repairs.put(roomNumber, new BitSet(days));
+    }
+    calendar.mark(calendar.booked, esql.executeQueryAndReturnResult(String.format("SELECT roomNumber, bookingDate FROM RoomBookings WHERE hotelID = %d AND bookingDate BETWEEN '%s' AND '%s'", hotelID, from, to)));
+    calendar.mark(calendar.repairs, esql.executeQueryAndReturnResult(String.format("SELECT roomNumber, repairDate FROM RoomRepairs WHERE hotelID = %d AND repairDate BETWEEN '%s' AND '%s'", hotelID, from, to)));
+    return calendar;
+  }
+
+  /**
+   * Checks a single room and day with one query, without loading a calendar.
+   *
+   * @return why a repair of the room on that date would conflict, or NONE
+   * @throws java.sql.SQLException when failed to execute the query
+   */
+  public static Conflict check(Hotel esql, int hotelID, int roomNumber, LocalDate date) throws SQLException {
+    String query = String.format("SELECT CASE WHEN NOT EXISTS (SELECT 1 FROM Rooms WHERE hotelID = %1$d AND roomNumber = %2$d) THEN 'NO_SUCH_ROOM' " +
+      "WHEN EXISTS (SELECT 1 FROM RoomBookings WHERE hotelID = %1$d AND roomNumber = %2$d AND bookingDate = '%3$s') THEN 'BOOKED' " +
+      "WHEN EXISTS (SELECT 1 FROM RoomRepairs WHERE hotelID = %1$d AND roomNumber = %2$d AND repairDate = '%3$s') THEN 'UNDER_REPAIR' " +
+      "ELSE 'NONE' END", hotelID, roomNumber, date);
+    return Conflict.valueOf(esql.executeQueryAndReturnResult(query).get(0).get(0).trim());
+  }
+
+  private void mark(Map < Integer, BitSet > days, List < List < String >> rows) {
+    for (List < String > row: rows) {
+      BitSet room = days.get(Integer.parseInt(row.get(0)));
+      if (room != null) {
+        room.set(dayIndex(LocalDate.parse(row.get(1).trim())));
+      }
+    }
+  }
+
+  private int dayIndex(LocalDate date) {
+    long index = ChronoUnit.DAYS.between(this.from, date);
+    if (index < 0 || index >= this.days) {
+      throw new IllegalArgumentException(date + " is outside the calendar of hotel " + this.hotelID + ".");
+    }
+    return (int) index;
+  }
+
+  /**
+   * Suggests, for every room of the hotel, the first n days of the calendar
+   * on which the room is neither booked nor under repair. Rooms with fewer
+   * free days in the calendar get fewer suggestions.
+   *
+   * @param n the number of dates per room
+   * @return roomNumber -> suggested dates, in room order
+   */
+  public Map < Integer, List < LocalDate >> suggestRepairDates(int n) {
+    Map < Integer, List < LocalDate >> suggestions = new TreeMap < Integer, List < LocalDate >> ();
+    for (Map.Entry < Integer, BitSet > entry: this.booked.entrySet()) {
+      BitSet busy = (BitSet) entry.getValue().clone();
+      busy.or(this.repairs.get(entry.getKey()));
+      List < LocalDate > dates = new ArrayList < LocalDate > (n);
+      for (int day = busy.nextClearBit(0); day < this.days && dates.size() < n; day = busy.nextClearBit(day + 1)) {
+        dates.add(this.from.plusDays(day));
+      }
+      suggestions.put(entry.getKey(), dates);
+    }
+    return suggestions;
+  }
+}
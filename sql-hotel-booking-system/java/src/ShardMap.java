@@ -0,0 +1,229 @@
+/*
+ * Shard Map
+ * =============================
+ *
+ * Maps each hotelID to one of several Postgres databases.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Hotels are placed on a consistent-hash ring with VNODES points per shard,
+ * so adding a shard only moves about 1/N of the hotels. Single hotels can be
+ * pinned to a shard, which is how the rebalancer moves them.
+ *
+ * The map is read from a plain text file, one entry per line:
+ *
+ *   # name port dbname
+ *   shard s0 5432 alice_DB
+ *   shard s1 5433 alice_DB1
+ *   # hotelID shard, written by ShardRebalancer
+ *   hotel 17 s1
+ *
+ * Users and MaintenanceCompany are replicated on every shard; every other
+ * table lives on the shard of its hotel. The file is re-read when it changes,
+ * so running clients pick up hotels moved by the rebalancer.
+ */
+public class ShardMap {
+
+  // ring points per shard
+  static final int VNODES = 64;
+
+  public static final class Shard {
+    public final String name;
+    public final String port;
+    public final String dbname;
+
+    Shard(String name, String port, String dbname) {
+      this.name = name;
+      this.port = port;
+      this.dbname = dbname;
+    }
+
+    public String toString() {
+      return this.name + " (" + this.dbname + " on port " + this.port + ")";
+    }
+  }
+
+  private final File file;
+  private long loadedAt = 0;
+  private List < Shard > shards = new ArrayList < Shard > ();
+  private SortedMap < Integer, Shard > ring = new TreeMap < Integer, Shard > ();
+  private Map < Integer, Shard > pinned = new TreeMap < Integer, Shard > ();
+
+  private ShardMap(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Reads the shard map file.
+   *
+   * @param path the file
+   * @return the map
+   * @throws java.io.IOException when the file cannot be read or is invalid
+   */
+  public static ShardMap load(String path) throws IOException {
+    ShardMap map = new ShardMap(new File(path));
+    map.reload();
+    return map;
+  }
+
+  /**
+   * @return the shards in file order
+   */
+  public synchronized List < Shard > shards() {
+    refresh();
+    return Collections.unmodifiableList(this.shards);
+  }
+
+  public synchronized Shard shard(String name) {
+    refresh();
+    for (Shard shard: this.shards) {
+      if (shard.name.equals(name)) {
+        return shard;
+      }
+    }
+    throw new IllegalArgumentException("Unknown shard: " + name);
+  }
+
+  /**
+   * @return the shard holding the hotel
+   */
+  public synchronized Shard shardOf(int hotelID) {
+    refresh();
+    Shard shard = this.pinned.get(hotelID);
+    if (shard != null) {
+      return shard;
+    }
+    SortedMap < Integer, Shard > tail = this.ring.tailMap(hash("hotel:" + hotelID));
+    return tail.isEmpty() ? this.ring.get(this.ring.firstKey()) : tail.get(tail.firstKey());
+  }
+
+  /**
+   * Pins a hotel to a shard and rewrites the file. The new content is
+   * written to a temporary file that then replaces the map in one atomic
+   * rename, so clients re-reading it never see a partly written map.
+   */
+  public synchronized void pin(int hotelID, Shard shard) throws IOException {
+    refresh();
+    this.pinned.put(hotelID, shard);
+    File dir = this.file.getAbsoluteFile().getParentFile();
+    File tmp = File.createTempFile(this.file.getName(), ".tmp", dir);
+    PrintWriter out = new PrintWriter(new FileWriter(tmp));
+    try {
+      out.println("# name port dbname");
+      for (Shard s: this.shards) {
+        out.println("shard " + s.name + " " + s.port + " " + s.dbname);
+      }
+      out.println("# hotelID shard, written by ShardRebalancer");
+      for (Map.Entry < Integer, Shard > entry: this.pinned.entrySet()) {
+        out.println("hotel " + entry.getKey() + " " + entry.getValue().name);
+      }
+    } finally {
+      out.close();
+    }
+    if (out.checkError()) {
+      tmp.delete();
+      throw new IOException("Could not write " + tmp);
+    }
+    Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    this.loadedAt = this.file.lastModified();
+  }
+
+  // Re-reads the file when it changed since the last read.
+  private void refresh() {
+    if (this.file.lastModified() != this.loadedAt) {
+      try {
+        reload();
+      } catch (IOException e) {
+        System.err.println("Keeping the previous shard map: " + e.getMessage());
+      }
+    }
+  }
+
+  private void reload() throws IOException {
+    long modified = this.file.lastModified();
+    List < Shard > shards = new ArrayList < Shard > ();
+    List < String[] > pins = new ArrayList < String[] > ();
+    BufferedReader reader = new BufferedReader(new FileReader(this.file));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\\s+");
+        if (fields[0].equals("shard") && fields.length == 4) {
+          shards.add(new Shard(fields[1], fields[2], fields[3]));
+        } else if (fields[0].equals("hotel") && fields.length == 3) {
+          pins.add(fields);
+        } else {
+          throw new IOException("Invalid line in " + this.file + ": " + line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    if (shards.isEmpty()) {
+      throw new IOException("No shard listed in " + this.file);
+    }
+
+    SortedMap < Integer, Shard > ring = new TreeMap < Integer, Shard > ();
+    for (Shard shard: shards) {
+      for (int i = 0; i < VNODES; i++) {
+        ring.put(hash(shard.name + "#" + i), shard);
+      }
+    }
+    Map < Integer, Shard > pinned = new TreeMap < Integer, Shard > ();
+    for (String[] pin: pins) {
+      Shard target = null;
+      for (Shard shard: shards) {
+        if (shard.name.equals(pin[2])) {
+          target = shard;
+        }
+      }
+      if (target == null) {
+        throw new IOException("Hotel " + pin[1] + " is pinned to unknown shard " + pin[2]);
+      }
+      pinned.put(Integer.parseInt(pin[1]), target);
+    }
+
+    this.shards = shards;
+    this.ring = ring;
+    this.pinned = pinned;
+    this.loadedAt = modified;
+  }
+
+  // FNV-1a followed by the murmur3 finalizer, so nearby keys spread over the ring.
+  static int hash(String key) {
+    int h = 0x811c9dc5;
+    for (byte b: key.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xff;
+      h *= 0x01000193;
+    }
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Shard Rebalancer
+ * =============================
+ *
+ * Prepares the shards listed in a ShardMap file and moves hotels between
+ * them while the system keeps running.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Setting up shards:
+ *
+ *   1. create every shard database with create_db.sh (and migrate.sh), so
+ *      each starts as a full copy of the data;
+ *   2. list the shards in the shard file (see ShardMap);
+ *   3. run split, then init, once;
+ *   4. start the clients with -Dhotel.shards=<shardfile>.
+ *
+ * Usage:
+ *
+ *   java ShardRebalancer <shardfile> <user> split
+ *     Deletes from every shard the hotels the map assigns to another shard,
+ *     so each hotel is left only on its own shard. A hotel missing from its
+ *     own shard is reported and left everywhere.
+ *
+ *   java ShardRebalancer <shardfile> <user> init
+ *     Interleaves the ID sequences of the shards (shard k of N hands out
+ *     IDs congruent to k mod N) so rows keep unique IDs when they are moved
+ *     and users created on one shard can be copied to the others.
+ *
+ *   java ShardRebalancer <shardfile> <user> move <hotelID> <shard>
+ *     Copies every row of the hotel to the target shard, pins the hotel to it
+ *     in the shard file, then deletes the rows from the source shard.
+ *
+ * A move is online: while it runs, the hotel's Hotel and Rooms rows are
+ * locked FOR UPDATE on the source shard, which blocks only writes to that
+ * hotel (bookings, repairs and room updates all take a key-share lock on
+ * the room), while reads and every other hotel carry on. Clients re-read
+ * the shard file when it changes and route the hotel to its new shard.
+ */
+public class ShardRebalancer {
+
+  // sequences of Users (replicated) and of the tables whose rows live on the shard of their hotel
+  static final String[][] SEQUENCES = {
+    { "users_userid_seq", "Users", "userID" },
+    { "roombookings_bookingid_seq", "RoomBookings", "bookingID" },
+    { "roomrepairs_repairid_seq", "RoomRepairs", "repairID" },
+    { "roomrepairrequests_requestnumber_seq", "RoomRepairRequests", "requestNumber" },
+    { "roomupdateslog_updatenumber_seq", "RoomUpdatesLog", "updateNumber" },
+    { "pricingruns_runid_seq", "PricingRuns", "runID" }
+  };
+
+  // tables of a hotel in foreign key order, with the condition selecting the hotel's rows
+  static final String[][] HOTEL_TABLES = {
+    { "Hotel", "hotelID = %d" },
+    { "Rooms", "hotelID = %d" },
+    { "RoomPrices", "hotelID = %d" },
+    { "RoomBookings", "hotelID = %d" },
+    { "RoomRepairs", "hotelID = %d" },
+    { "RoomRepairRequests", "repairID IN (SELECT repairID FROM RoomRepairs WHERE hotelID = %d)" },
+    { "RoomUpdatesLog", "hotelID = %d" }
+  };
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3 || (args[2].equals("move") && args.length != 5)) {
+      System.err.println("Usage: java [-classpath <classpath>] " + ShardRebalancer.class.getName() + " <shardfile> <user> split | init | move <hotelID> <shard>");
+      return;
+    }
+    Class.forName("org.postgresql.Driver");
+    ShardMap map = ShardMap.load(args[0]);
+    String user = args[1];
+    if (args[2].equals("split")) {
+      split(map, user);
+    } else if (args[2].equals("init")) {
+      init(map, user);
+    } else if (args[2].equals("move")) {
+      move(map, user, Integer.parseInt(args[3]), map.shard(args[4]));
+    } else {
+      System.err.println("Unknown command: " + args[2]);
+    }
+  }
+
+  static Connection connect(ShardMap.Shard shard, String user) throws SQLException {
+    return DriverManager.getConnection("jdbc:postgresql://localhost:" + shard.port + "/" + shard.dbname, user, "");
+  }
+
+  static void split(ShardMap map, String user) throws SQLException {
+    List < ShardMap.Shard > shards = map.shards();
+    Map < String, Set < Integer >> hotels = new HashMap < String, Set < Integer >> ();
+    Set < Integer > all = new TreeSet < Integer > ();
+    for (ShardMap.Shard shard: shards) {
+      Set < Integer > ids = new HashSet < Integer > ();
+      Connection conn = connect(shard, user);
+      try {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT hotelID FROM Hotel");
+        while (rs.next()) {
+          ids.add(rs.getInt(1));
+        }
+        stmt.close();
+      } finally {
+        conn.close();
+      }
+      hotels.put(shard.name, ids);
+      all.addAll(ids);
+    }
+
+    for (ShardMap.Shard shard: shards) {
+      Connection conn = connect(shard, user);
+      conn.setAutoCommit(false);
+      int deleted = 0;
+      try {
+        for (int hotelID: all) {
+          ShardMap.Shard owner = map.shardOf(hotelID);
+          if (owner.name.equals(shard.name) || !hotels.get(shard.name).contains(hotelID)) {
+            continue;
+          }
+          if (!hotels.get(owner.name).contains(hotelID)) {
+            System.err.println("Hotel " + hotelID + " belongs on " + owner + " but is not there; leaving its copies in place.");
+            continue;
+          }
+          deleteHotel(conn, hotelID);
+          conn.commit();
+          deleted++;
+        }
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.close();
+      }
+      System.out.println(shard + ": removed " + deleted + " hotel(s) owned by other shards.");
+    }
+  }
+
+  static void init(ShardMap map, String user) throws SQLException {
+    List < ShardMap.Shard > shards = map.shards();
+    int n = shards.size();
+    for (String[] sequence: SEQUENCES) {
+      // the next ID block starts above every ID already used on any shard
+      long max = 0;
+      for (ShardMap.Shard shard: shards) {
+        Connection conn = connect(shard, user);
+        try {
+          Statement stmt = conn.createStatement();
+          ResultSet rs = stmt.executeQuery(String.format("SELECT COALESCE(MAX(%s), 0) FROM %s", sequence[2], sequence[1]));
+          rs.next();
+          max = Math.max(max, rs.getLong(1));
+          stmt.close();
+        } finally {
+          conn.close();
+        }
+      }
+      long base = (max / n + 1) * n;
+      for (int k = 0; k < n; k++) {
+        Connection conn = connect(shards.get(k), user);
+        try {
+          Statement stmt = conn.createStatement();
+          stmt.executeUpdate(String.format("ALTER SEQUENCE %s INCREMENT BY %d RESTART WITH %d", sequence[0], n, base + k));
+          stmt.close();
+        } finally {
+          conn.close();
+        }
+      }
+      System.out.println(sequence[0] + ": shard k now hands out " + base + " + k + " + n + "i");
+    }
+  }
+
+  static void move(ShardMap map, String user, int hotelID, ShardMap.Shard target) throws Exception {
+    ShardMap.Shard source = map.shardOf(hotelID);
+    if (source.name.equals(target.name)) {
+      System.out.println("Hotel " + hotelID + " is already on " + target + ".");
+      return;
+    }
+    Connection src = connect(source, user);
+    Connection dst = connect(target, user);
+    src.setAutoCommit(false);
+    dst.setAutoCommit(false);
+    boolean copied = false;
+    boolean pinned = false;
+    try {
+      // freeze writes to the hotel on the source until the move is over
+      Statement lock = src.createStatement();
+      lock.executeQuery(String.format("SELECT hotelID FROM Hotel WHERE hotelID = %d FOR UPDATE", hotelID)).close();
+      lock.executeQuery(String.format("SELECT roomNumber FROM Rooms WHERE hotelID = %d FOR UPDATE", hotelID)).close();
+      lock.close();
+
+      long rows = 0;
+      for (String[] table: HOTEL_TABLES) {
+        rows += copyRows(src, dst, table[0], String.format(table[1], hotelID));
+      }
+      dst.commit();
+      copied = true;
+
+      map.pin(hotelID, target);
+      pinned = true;
+
+      deleteHotel(src, hotelID);
+      src.commit();
+      System.out.println("Moved hotel " + hotelID + " (" + rows + " rows) from " + source + " to " + target + ".");
+    } catch (Exception e) {
+      src.rollback();
+      if (pinned) {
+        System.err.println("Hotel " + hotelID + " now lives on " + target + " but its old rows could not be removed from " + source + "; delete them there.");
+      } else if (copied) {
+        System.err.println("Hotel " + hotelID + " was copied to " + target + " but the move did not complete; its rows remain on " + source + " and must be removed from " + target + " before retrying.");
+      } else {
+        dst.rollback();
+      }
+      throw e;
+    } finally {
+      src.close();
+      dst.close();
+    }
+  }
+
+  // Deletes every row of the hotel, in reverse foreign key order.
+  static void deleteHotel(Connection conn, int hotelID) throws SQLException {
+    for (int i = HOTEL_TABLES.length - 1; i >= 0; i--) {
+      Statement stmt = conn.createStatement();
+      stmt.executeUpdate(String.format("DELETE FROM %s WHERE %s", HOTEL_TABLES[i][0], String.format(HOTEL_TABLES[i][1], hotelID)));
+      stmt.close();
+    }
+  }
+
+  // Copies the rows of one table matching the condition as one batch.
+  static long copyRows(Connection src, Connection dst, String table, String where) throws SQLException {
+    Statement select = src.createStatement();
+    try {
+      ResultSet rs = select.executeQuery("SELECT * FROM " + table + " WHERE " + where);
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      StringBuilder columns = new StringBuilder();
+      StringBuilder values = new StringBuilder();
+      for (int i = 1; i <= numCol; i++) {
+        columns.append(i > 1 ? ", " : "").append(rsmd.getColumnName(i));
+        values.append(i > 1 ? ", " : "").append("?");
+      }
+      PreparedStatement insert = dst.prepareStatement("INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")");
+      long rows = 0;
+      try {
+        while (rs.next()) {
+          for (int i = 1; i <= numCol; i++) {
+            insert.setObject(i, rs.getObject(i));
+          }
+          insert.addBatch();
+          rows++;
+        }
+        insert.executeBatch();
+      } finally {
+        insert.close();
+      }
+      rs.close();
+      return rows;
+    } finally {
+      select.close();
+    }
+  }
+}
@@ -0,0 +1,285 @@
+/*
+ * Workload Traces
+ * =============================
+ *
+ * Records the menu operations of interactive sessions into trace files and
+ * feeds recorded sessions back to the menus for WorkloadReplayer.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A trace is one interactive session: the steps it went through, in order.
+ * A step starts when the menu reads a choice and holds every line typed
+ * until the next choice. It is named after the menu operation it ran (see
+ * Hotel.beginOperation), or "menu" when the choice ran none (log out, exit,
+ * metrics, invalid input). The file is text, one step per line:
+ *
+ *   # hotel workload v1
+ *   <millis since session start> TAB <operation> TAB <line> TAB <line> ...
+ *
+ * with tabs, newlines and backslashes in typed lines escaped. Files whose
+ * name ends in .gz are compressed. Passwords (read with readPassword) are
+ * never written: the trace holds MASKED in their place.
+ *
+ * Hotel reads all menu input through Workload.Input, which serves each thread
+ * its own Source: the keyboard, optionally recorded with -Dhotel.record, or a
+ * session being replayed.
+ */
+public class Workload {
+
+  static final String HEADER = "# hotel workload v1";
+  public static final String MENU = "menu";
+  public static final String MASKED = "********";
+
+  public static final class Step {
+    final long offset;
+    String operation = MENU;
+    final List < String > lines = new ArrayList < String > ();
+
+    Step(long offset) {
+      this.offset = offset;
+    }
+
+    public long offset() {
+      return this.offset;
+    }
+
+    public String operation() {
+      return this.operation;
+    }
+
+    public List < String > lines() {
+      return this.lines;
+    }
+  }
+
+  /**
+   * Where the menu input of a thread comes from.
+   */
+  public static abstract class Source {
+    public abstract String readLine() throws IOException;
+
+    /**
+     * Reads a password.
+     *
+     * @param userID the user logging in, or null for a new user
+     */
+    public String readPassword(String userID) throws IOException {
+      return readLine();
+    }
+
+    // the menu is about to read a choice
+    public void choice() {}
+
+    // the current choice runs the given menu operation
+    public void operation(String name) {}
+  }
+
+  /**
+   * The menu input. Only readLine and readPassword are served; they read
+   * the Source of the calling thread.
+   */
+  public static final class Input extends BufferedReader {
+    private final ThreadLocal < Source > source = ThreadLocal.withInitial(() -> KEYBOARD);
+
+    Input() {
+      super(new StringReader(""));
+    }
+
+    public String readLine() throws IOException {
+      return this.source.get().readLine();
+    }
+
+    public String readPassword(String userID) throws IOException {
+      return this.source.get().readPassword(userID);
+    }
+
+    public void choice() {
+      this.source.get().choice();
+    }
+
+    public void operation(String name) {
+      this.source.get().operation(name);
+    }
+
+    /**
+     * Makes the calling thread read from the given source until it ends.
+     */
+    public void attach(Source source) {
+      this.source.set(source);
+    }
+
+    public void detach() {
+      this.source.remove();
+    }
+  }
+
+  // the keyboard, recorded to a trace once startRecording is called
+  static final Keyboard KEYBOARD = new Keyboard();
+
+  static final class Keyboard extends Source {
+    private final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+    private PrintWriter trace = null;
+    private long start;
+    private Step step = null;
+
+    public String readLine() throws IOException {
+      String line = this.reader.readLine();
+      record(line, line);
+      return line;
+    }
+
+    public String readPassword(String userID) throws IOException {
+      String line = this.reader.readLine();
+      record(line, MASKED);
+      return line;
+    }
+
+    private synchronized void record(String line, String recorded) {
+      if (this.trace != null && line != null) {
+        if (this.step == null) {
+          this.step = new Step(System.currentTimeMillis() - this.start);
+        }
+        this.step.lines.add(recorded);
+      }
+    }
+
+    public synchronized void choice() {
+      if (this.trace != null) {
+        flush();
+        this.step = new Step(System.currentTimeMillis() - this.start);
+      }
+    }
+
+    // the first operation started by the choice names the step; shard nodes repeat it
+    public synchronized void operation(String name) {
+      if (this.step != null && this.step.operation.equals(MENU)) {
+        this.step.operation = name;
+      }
+    }
+
+    synchronized void start(File file) throws IOException {
+      this.trace = new PrintWriter(new OutputStreamWriter(open(file), StandardCharsets.UTF_8));
+      this.trace.println(HEADER);
+      this.start = System.currentTimeMillis();
+      this.step = null;
+    }
+
+    synchronized void stop() {
+      if (this.trace != null) {
+        flush();
+        this.trace.close();
+        this.trace = null;
+      }
+    }
+
+    private void flush() {
+      if (this.step != null) {
+        write(this.trace, this.step);
+        this.trace.flush();
+        this.step = null;
+      }
+    }
+  }
+
+  /**
+   * Records the keyboard input of this process into a trace file until
+   * stopRecording is called.
+   */
+  public static void startRecording(String path) throws IOException {
+    KEYBOARD.start(new File(path));
+  }
+
+  public static void stopRecording() {
+    KEYBOARD.stop();
+  }
+
+  /**
+   * Reads a trace file.
+   *
+   * @return the steps of the recorded session
+   * @throws java.io.IOException when the file cannot be read or is not a trace
+   */
+  public static List < Step > read(File file) throws IOException {
+    InputStream stream = new FileInputStream(file);
+    if (file.getName().endsWith(".gz")) {
+      stream = new GZIPInputStream(stream);
+    }
+    List < Step > steps = new ArrayList < Step > ();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    try {
+      if (!HEADER.equals(reader.readLine())) {
+        throw new IOException(file + " is not a workload trace");
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 2) {
+          throw new IOException("Invalid line in " + file + ": " + line);
+        }
+        Step step = new Step(Long.parseLong(fields[0]));
+        step.operation = fields[1];
+        for (int i = 2; i < fields.length; i++) {
+          step.lines.add(unescape(fields[i]));
+        }
+        steps.add(step);
+      }
+    } finally {
+      reader.close();
+    }
+    return steps;
+  }
+
+  static OutputStream open(File file) throws IOException {
+    OutputStream stream = new FileOutputStream(file);
+    return file.getName().endsWith(".gz") ? new GZIPOutputStream(stream) : stream;
+  }
+
+  static void write(PrintWriter out, Step step) {
+    out.print(step.offset);
+    out.print('\t');
+    out.print(step.operation);
+    for (String line: step.lines) {
+      out.print('\t');
+      out.print(escape(line));
+    }
+    out.println();
+  }
+
+  static String escape(String line) {
+    return line.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+  }
+
+  static String unescape(String field) {
+    StringBuilder line = new StringBuilder(field.length());
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (c == '\\' && i + 1 < field.length()) {
+        char next = field.charAt(++i);
+        line.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+      } else {
+        line.append(c);
+      }
+    }
+    return line.toString();
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Workload Replayer
+ * =============================
+ *
+ * Replays sessions recorded with -Dhotel.record against a database at a
+ * configurable concurrency and speed-up.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each session runs the real menus (Hotel.runMenu) on its own connection in
+ * a thread of a fixed pool, reading the typed lines of a trace instead of the
+ * keyboard. Session i replays trace i modulo the number of traces, so a few
+ * recordings can drive many concurrent clients. Steps are started at their
+ * recorded offset divided by the speed-up; a speed-up of 0 replays without
+ * pauses. When a trace runs out, the session logs out and exits.
+ *
+ * All sessions book through one shared admission layer per shard, as
+ * clients of one booking service would, which also keeps the number of
+ * connections at one per session plus the stripes.
+ *
+ * A step counts as an error when its operation prints to stderr, which is
+ * how every menu operation reports a failure. Menu output is discarded while
+ * the sessions run. Passwords are not recorded; a session logging in uses
+ * the user's password from Users, and a new user gets REPLAY_PASSWORD. The
+ * sessions write to the database like the recorded ones did, so replay
+ * against a scratch copy.
+ *
+ * Usage: java WorkloadReplayer <dbname> <port> <user> <sessions> <speedup> <trace>...
+ */
+public class WorkloadReplayer {
+
+  // lines fed to a session whose trace ran out: log out, then exit
+  static final String[] TAIL = { "20", "9" };
+  // password of the users created by replayed sessions
+  static final String REPLAY_PASSWORD = "replay";
+
+  // the replayed step of each session thread
+  static final ThreadLocal < Replay > CURRENT = new ThreadLocal < Replay > ();
+
+  // latencies and errors of one operation type over all sessions
+  static final class Stats {
+    private long[] latencies = new long[64];
+    private int count = 0;
+    private int errors = 0;
+
+    synchronized void add(long latency, boolean failed) {
+      if (this.count == this.latencies.length) {
+        this.latencies = Arrays.copyOf(this.latencies, this.count * 2);
+      }
+      this.latencies[this.count++] = latency;
+      if (failed) {
+        this.errors++;
+      }
+    }
+  }
+
+  // Feeds one trace to the menus of one session and times its steps.
+  static final class Replay extends Workload.Source {
+    private final List < Workload.Step > steps;
+    private final double speedup;
+    private final Map < String, Stats > stats;
+    private final long start = System.nanoTime();
+    private int next = 0;
+    private Workload.Step step = null;
+    private int line = 0;
+    private int tail = 0;
+    private long stepStart;
+    volatile boolean failed = false;
+    // the session's connection, to look up passwords
+    Hotel esql = null;
+
+    Replay(List < Workload.Step > steps, double speedup, Map < String, Stats > stats) {
+      this.steps = steps;
+      this.speedup = speedup;
+      this.stats = stats;
+    }
+
+    public String readLine() {
+      if (this.step != null && this.line < this.step.lines().size()) {
+        return this.step.lines().get(this.line++);
+      }
+      return TAIL[this.tail++ % TAIL.length];
+    }
+
+    // The trace holds Workload.MASKED; logins use the user's actual password.
+    public String readPassword(String userID) {
+      boolean recorded = this.step != null && this.line < this.step.lines().size();
+      String line = readLine();
+      if (!recorded) {
+        return line;
+      }
+      if (userID == null) {
+        return REPLAY_PASSWORD;
+      }
+      try {
+        List < List < String >> rows = this.esql.executeQueryAndReturnResult(String.format("SELECT password FROM Users WHERE userID = %d", Integer.parseInt(userID.trim())));
+        return rows.isEmpty() ? line : rows.get(0).get(0).trim();
+      } catch (Exception e) {
+        // unknown user: the login fails as it did when recorded
+        return line;
+      }
+    }
+
+    public void choice() {
+      finish();
+      if (this.next < this.steps.size()) {
+        this.step = this.steps.get(this.next++);
+        this.line = 0;
+        if (this.speedup > 0) {
+          long due = this.start + (long)(this.step.offset() * 1e6 / this.speedup);
+          long wait = due - System.nanoTime();
+          if (wait > 0) {
+            try {
+              TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        }
+        this.failed = false;
+        this.stepStart = System.nanoTime();
+      }
+    }
+
+    // Records the step in progress, if any.
+    void finish() {
+      if (this.step == null) {
+        return;
+      }
+      long latency = System.nanoTime() - this.stepStart;
+      Stats s;
+      synchronized(this.stats) {
+        s = this.stats.get(this.step.operation());
+        if (s == null) {
+          s = new Stats();
+          this.stats.put(this.step.operation(), s);
+        }
+      }
+      s.add(latency, this.failed);
+      this.step = null;
+    }
+  }
+
+  // Marks the running step of session threads failed; other threads keep writing to the real stream.
+  static final class ErrorStream extends OutputStream {
+    private final PrintStream real;
+
+    ErrorStream(PrintStream real) {
+      this.real = real;
+    }
+
+    public void write(int b) {
+      Replay replay = CURRENT.get();
+      if (replay != null) {
+        replay.failed = true;
+      } else {
+        this.real.write(b);
+      }
+    }
+
+    public void write(byte[] b, int off, int len) {
+      Replay replay = CURRENT.get();
+      if (replay != null) {
+        replay.failed = true;
+      } else {
+        this.real.write(b, off, len);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 6) {
+      System.err.println("Usage: java [-classpath <classpath>] " + WorkloadReplayer.class.getName() + " <dbname> <port> <user> <sessions> <speedup> <trace>...");
+      return;
+    }
+    final String dbname = args[0];
+    final String dbport = args[1];
+    final String user = args[2];
+    int sessions = Integer.parseInt(args[3]);
+    final double speedup = Double.parseDouble(args[4]);
+    final List < List < Workload.Step >> traces = new ArrayList < List < Workload.Step >> ();
+    for (int i = 5; i < args.length; i++) {
+      traces.add(Workload.read(new File(args[i])));
+    }
+    final String shardFile = System.getProperty("hotel.shards");
+    final ShardMap shards = shardFile == null ? null : ShardMap.load(shardFile);
+
+    Class.forName("org.postgresql.Driver");
+    final Map < String, Stats > stats = new TreeMap < String, Stats > ();
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    System.setOut(new PrintStream(new OutputStream() {
+      public void write(int b) {}
+
+      public void write(byte[] b, int off, int len) {}
+    }));
+    System.setErr(new PrintStream(new ErrorStream(err), true));
+
+    // owns the admission layers shared by all sessions
+    final Hotel bookings = new Hotel(dbname, dbport, user, "");
+    if (shards != null) {
+      bookings.attachShards(shards);
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(sessions);
+    long begin = System.nanoTime();
+    try {
+      for (int i = 0; i < sessions; i++) {
+        final List < Workload.Step > trace = traces.get(i % traces.size());
+        pool.execute(new Runnable() {
+          public void run() {
+            Hotel esql = null;
+            Replay replay = new Replay(trace, speedup, stats);
+            try {
+              esql = new Hotel(dbname, dbport, user, "");
+              if (shards != null) {
+                esql.attachShards(shards);
+              }
+              esql.shareAdmission(bookings);
+              replay.esql = esql;
+              CURRENT.set(replay);
+              Hotel.in.attach(replay);
+              Hotel.runMenu(esql);
+              replay.finish();
+            } catch (Exception e) {
+              System.err.println(e.getMessage());
+            } finally {
+              Hotel.in.detach();
+              CURRENT.remove();
+              if (esql != null) {
+                esql.cleanup();
+              }
+            }
+          }
+        });
+      }
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } finally {
+      bookings.cleanup();
+      System.setOut(out);
+      System.setErr(err);
+    }
+    report(stats, sessions, (System.nanoTime() - begin) / 1e9);
+  }
+
+  static void report(Map < String, Stats > stats, int sessions, double seconds) {
+    long total = 0;
+    long errors = 0;
+    for (Map.Entry < String, Stats > entry: stats.entrySet()) {
+      Stats s = entry.getValue();
+      long[] latencies = Arrays.copyOf(s.latencies, s.count);
+      Arrays.sort(latencies);
+      System.out.printf("%-28s ops=%d throughput=%.1f ops/s p50=%.2f ms p95=%.2f ms p99=%.2f ms max=%.2f ms errors=%d (%.1f%%)\n",
+        entry.getKey(), s.count, s.count / seconds,
+        percentile(latencies, 0.50), percentile(latencies, 0.95), percentile(latencies, 0.99), latencies[latencies.length - 1] / 1e6,
+        s.errors, 100.0 * s.errors / s.count);
+      total += s.count;
+      errors += s.errors;
+    }
+    System.out.printf("%-28s ops=%d sessions=%d elapsed=%.1f s throughput=%.1f ops/s errors=%d\n", "total", total, sessions, seconds, total / seconds, errors);
+  }
+
+  static double percentile(long[] sorted, double p) {
+    return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))] / 1e6;
+  }
+}
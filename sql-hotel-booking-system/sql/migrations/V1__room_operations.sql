@@ -0,0 +1,45 @@
+--Server-side versions of the multi-step menu operations, so each one costs a single call and a single commit.
+--Functions are versioned by name: an incompatible change adds a _v2 next to _v1 in a new migration, so clients
+--that still call _v1 keep working until they are upgraded.
+
+--Updates the price and/or image URL of a room (NULL keeps the current value) and logs the update.
+--Returns the timestamp recorded in RoomUpdatesLog, or NULL when the room does not exist.
+CREATE OR REPLACE FUNCTION update_room_info_v1(p_manager integer, p_hotel integer, p_room integer, p_price integer, p_image text)
+RETURNS timestamp AS $update$
+DECLARE
+    v_now timestamp := localtimestamp;
+BEGIN
+    UPDATE Rooms SET price = COALESCE(p_price, price), imageURL = COALESCE(p_image, imageURL)
+    WHERE hotelID = p_hotel AND roomNumber = p_room;
+    IF NOT FOUND THEN
+        RETURN NULL;
+    END IF;
+    INSERT INTO RoomUpdatesLog (managerID, hotelID, roomNumber, updatedOn) VALUES (p_manager, p_hotel, p_room, v_now);
+    RETURN v_now;
+END;
+$update$ LANGUAGE plpgsql;
+
+--Schedules a repair and records the manager's request, unless the room is booked or already under repair that day.
+--Takes the same (hotelID, day) advisory lock as the booking admission layer, so no booking can slip in between.
+--Returns 'NONE' when the request was placed, otherwise 'BOOKED', 'UNDER_REPAIR' or 'NO_SUCH_ROOM'.
+CREATE OR REPLACE FUNCTION place_room_repair_request_v1(p_manager integer, p_company integer, p_hotel integer, p_room integer, p_date date)
+RETURNS text AS $repair$
+DECLARE
+    v_repair integer;
+BEGIN
+    PERFORM pg_advisory_xact_lock(p_hotel, p_date - date '1970-01-01');
+    IF NOT EXISTS (SELECT 1 FROM Rooms WHERE hotelID = p_hotel AND roomNumber = p_room) THEN
+        RETURN 'NO_SUCH_ROOM';
+    END IF;
+    IF EXISTS (SELECT 1 FROM RoomBookings WHERE hotelID = p_hotel AND roomNumber = p_room AND bookingDate = p_date) THEN
+        RETURN 'BOOKED';
+    END IF;
+    IF EXISTS (SELECT 1 FROM RoomRepairs WHERE hotelID = p_hotel AND roomNumber = p_room AND repairDate = p_date) THEN
+        RETURN 'UNDER_REPAIR';
+    END IF;
+    INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) VALUES (p_company, p_hotel, p_room, p_date)
+    RETURNING repairID INTO v_repair;
+    INSERT INTO RoomRepairRequests (managerID, repairID) VALUES (p_manager, v_repair);
+    RETURN 'NONE';
+END;
+$repair$ LANGUAGE plpgsql;
@@ -27,4 +27,19 @@ CREATE INDEX index_7 ON RoomRepairs USING BTREE (companyID, hotelID, roomNumber,
 
 -- RoomRepairRequests table
 DROP INDEX IF EXISTS index_8;
-CREATE INDEX index_8 ON RoomRepairRequests USING BTREE (managerID, repairID);
\ No newline at end of file
+CREATE INDEX index_8 ON RoomRepairRequests USING BTREE (managerID, repairID);
+
+-- RoomBookings per hotel and date, used by the booking admission layer, the room calendar and the history export
+DROP INDEX IF EXISTS index_9;
+CREATE INDEX index_9 ON RoomBookings USING BTREE (hotelID, bookingDate);
+
+-- Trigram indexes for case-insensitive prefix and fuzzy search on names (needs pg_trgm)
+DROP INDEX IF EXISTS index_10;
+CREATE INDEX index_10 ON Hotel USING GIN (lower(rtrim(hotelName)) gin_trgm_ops);
+
+DROP INDEX IF EXISTS index_11;
+CREATE INDEX index_11 ON Users USING GIN (lower(rtrim(name)) gin_trgm_ops);
+
+-- RoomRepairs per hotel and date, used to hide rooms under repair and to detect repair conflicts
+DROP INDEX IF EXISTS index_12;
+CREATE INDEX index_12 ON RoomRepairs USING BTREE (hotelID, repairDate);
\ No newline at end of file
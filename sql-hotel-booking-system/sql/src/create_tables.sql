@@ -6,6 +6,12 @@ DROP TABLE IF EXISTS RoomBookings CASCADE;
 DROP TABLE IF EXISTS RoomRepairs CASCADE;
 DROP TABLE IF EXISTS RoomRepairRequests CASCADE;
 DROP TABLE IF EXISTS RoomUpdatesLog CASCADE;
+DROP TABLE IF EXISTS RoomPrices CASCADE;
+DROP TABLE IF EXISTS PricingRuns CASCADE;
+DROP TABLE IF EXISTS SchemaMigrations CASCADE;
+
+--pg_trgm provides the trigram similarity operators and index support used by the name search.
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
 
 CREATE TABLE Users ( userID serial,
                      name char(50),
@@ -86,9 +92,50 @@ CREATE TABLE RoomUpdatesLog (
                             FOREIGN KEY(hotelID, roomNumber) REFERENCES Rooms(hotelID, roomNumber)
 );
 
+--The following table stores the demand-based price of a room on a given date, computed by the pricing engine.
+--When there is no row for a date, the static price in Rooms applies.
+CREATE TABLE RoomPrices (
+                            hotelID integer NOT NULL,
+                            roomNumber integer NOT NULL,
+                            priceDate date NOT NULL,
+                            surge numeric NOT NULL,
+                            price integer NOT NULL,
+                            PRIMARY KEY(hotelID, roomNumber, priceDate),
+                            FOREIGN KEY(hotelID, roomNumber) REFERENCES Rooms(hotelID, roomNumber) ON DELETE CASCADE
+);
+
+--The following table stores one summary entry per pricing engine run, instead of one RoomUpdatesLog row per repriced room.
+CREATE TABLE PricingRuns (
+                            runID serial,
+                            managerID integer NOT NULL,
+                            startDate date NOT NULL,
+                            days integer NOT NULL,
+                            pricesWritten integer NOT NULL,
+                            startedOn timestamp NOT NULL,
+                            finishedOn timestamp NOT NULL,
+                            PRIMARY KEY(runID),
+                            FOREIGN KEY(managerID) REFERENCES Users(userID)
+);
+
 ---The following is the definition of a user-defined sql function for calculating the distance between two lat-long pairs.
 CREATE OR REPLACE FUNCTION calculate_distance(lat1 decimal, long1 decimal, lat2 decimal, long2 decimal)
 RETURNS decimal AS $dist$
 BEGIN RETURN sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2));
 END;
-$dist$ LANGUAGE plpgsql;
\ No newline at end of file
+$dist$ LANGUAGE plpgsql;
+
+--Keeps the demand-based prices in line with the base price: when a manager changes the price of a room,
+--its RoomPrices rows are recomputed from the new base and the stored surge factor of each date,
+--so repeated price changes never accumulate rounding.
+CREATE OR REPLACE FUNCTION rescale_room_prices()
+RETURNS trigger AS $rescale$
+BEGIN
+    UPDATE RoomPrices SET price = ceil(NEW.price * surge)
+    WHERE hotelID = NEW.hotelID AND roomNumber = NEW.roomNumber;
+    RETURN NEW;
+END;
+$rescale$ LANGUAGE plpgsql;
+
+CREATE TRIGGER rescale_room_prices AFTER UPDATE OF price ON Rooms
+FOR EACH ROW WHEN (OLD.price IS DISTINCT FROM NEW.price)
+EXECUTE PROCEDURE rescale_room_prices();
\ No newline at end of file